@@ -1,76 +1,1891 @@
 import java.io.*;
+import java.math.BigDecimal;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.regex.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
 public class FriendDatabaseServer {
-    private static final int PORT = 8080;
-    private static final String FILE_NAME = "friends.txt";
+    private static final int PORT = Integer.getInteger("friends.port", 8080);
+    private static final String FILE_NAME = "friends.txt"; // CSV: import/export format, and read once to seed the first snapshot
+    private static final String SNAPSHOT_FILE_NAME = "friends.db"; // binary snapshot, decoded in full at startup
+    private static final String JOURNAL_FILE_NAME = "friends.journal";
+    private static final long JOURNAL_MAX_BYTES = Long.getLong("friends.journal.maxBytes", 64 * 1024);
+    private static final boolean JOURNAL_FSYNC = Boolean.getBoolean("friends.journal.fsync");
     private static final String ADMIN_PASSWORD = "admin123"; // Change this in production
-    private static final Map<String, String> friends = new HashMap<>();
-    private static final Set<String> activeUsers = ConcurrentHashMap.newKeySet(); // Active users set
-    private static final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+    private static final FriendStore friends = new FriendStore();
+    private static final String SERVER_MODE = System.getProperty("friends.mode", "pool"); // "pool", "virtual" or "nio"
+    private static final int MAX_QUEUED_CONNECTIONS = Integer.getInteger("friends.maxQueued", 50); // pool mode: waiting for a thread
+    private static final int MAX_SESSIONS = Integer.getInteger("friends.maxSessions", 10000); // virtual and nio modes
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("friends.backlog", 50);
+    private static final double CONNECT_RATE = Double.parseDouble(System.getProperty("friends.rate.perSecond", "5")); // per client address
+    private static final double CONNECT_BURST = Double.parseDouble(System.getProperty("friends.rate.burst", "20"));
+    private static final double AUTH_FAILURE_COST = 5; // tokens charged for each wrong password
+    private static final long IDLE_TIMEOUT_SECONDS = Long.getLong("friends.idleTimeout", 300); // 0 disables the idle reaper
+    private static final ExecutorService threadPool = createThreadPool();
     private static final Pattern PHONE_PATTERN = Pattern.compile("\\d{7,15}");
     private static final Pattern NAME_PATTERN = Pattern.compile("^[A-Za-z ]{1,30}$");
+    private static final int LIST_PAGE_SIZE = 100; // list output is flushed to the socket once per page
+    private static final int MAX_PIPELINE_BATCH = 256; // pipelined commands run before one journal write and flush
+    private static final int MAX_LINE_BYTES = 4096; // longest input line either front end buffers
+    private static final int MAX_IMPORT_ROWS = Integer.getInteger("friends.import.maxRows", 100000);
+    private static final int NIO_WORKERS = Integer.getInteger("friends.nio.workers", 16); // nio mode with shards: threads running commands
+
+    private static final int REPLICATION_PORT = Integer.getInteger("friends.replication.port", -1); // leader: followers connect here
+    private static final String REPLICATION_BIND = System.getProperty("friends.replication.bind"); // leader: interface to listen on, loopback if unset
+    private static final String REPLICA_OF = System.getProperty("friends.replicaOf"); // follower: leader's host:port
+    private static final boolean READ_ONLY = REPLICA_OF != null;
+    private static final String SHARDS = System.getProperty("friends.shards"); // every node's shard address, host:port,...
+    private static final String SHARD_SELF = System.getProperty("friends.shard.self"); // this node's entry in friends.shards
+    private static final String SHARD_BIND = System.getProperty("friends.shard.bind"); // interface the shard port listens on, loopback if unset
+    private static final int SHARD_THREADS = Integer.getInteger("friends.shard.threads", 64); // peer connections served at once
+    private static final int METRICS_PORT = Integer.getInteger("friends.metrics.port", -1); // loopback only; off unless set (9100 is node_exporter's)
+
+    private static final int LOG_QUEUE_SIZE = Integer.getInteger("friends.log.queueSize", 8192);
+    private static final boolean LOG_BLOCK_WHEN_FULL = "block".equals(System.getProperty("friends.log.overflow", "drop")); // "drop" or "block"
 
     private static final Logger logger = Logger.getLogger(FriendDatabaseServer.class.getName());
+    private static final Journal journal = new Journal(new File(JOURNAL_FILE_NAME), JOURNAL_MAX_BYTES, JOURNAL_FSYNC);
+    private static final ReplicationLeader replication = REPLICATION_PORT >= 0 ? new ReplicationLeader() : null;
+    private static final ShardRouter shards = new ShardRouter(SHARDS, SHARD_SELF);
+    private static final RateLimiter rateLimiter = new RateLimiter(CONNECT_RATE, CONNECT_BURST);
+    private static final SessionRegistry sessions = new SessionRegistry();
+
+    public static void main(String[] args) {
+        setupLogger();
+        if (args.length == 2 && (args[0].equals("import") || args[0].equals("export"))) {
+            runCsvTool(args[0], new File(args[1]));
+            return;
+        }
+        if (READ_ONLY) {
+            // A follower keeps no files of its own; it bootstraps from the leader's stream
+            ReplicationFollower.start(REPLICA_OF);
+        } else {
+            try {
+                loadDatabase();
+            } catch (IOException e) {
+                logger.severe("Error opening database: " + e.getMessage());
+                System.err.println("Error opening database: " + e.getMessage());
+                System.exit(1);
+            }
+            if (replication != null) {
+                replication.start(REPLICATION_PORT);
+            }
+        }
+        shards.start();
+        if (IDLE_TIMEOUT_SECONDS > 0) {
+            sessions.startReaper(TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS));
+        }
+        if (METRICS_PORT >= 0) {
+            Metrics.startEndpoint(METRICS_PORT);
+        }
+
+        if (SERVER_MODE.equals("nio")) {
+            try {
+                NioServer server = new NioServer(PORT);
+                logger.info("Server started on port " + PORT + " (nio)");
+                server.serve();
+            } catch (IOException e) {
+                logger.severe("Server error: " + e.getMessage());
+            }
+            return;
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(PORT, ACCEPT_BACKLOG)) {
+            logger.info("Server started on port " + PORT + " (" + SERVER_MODE + ")");
+
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                byte[] rejection = admissionCheck(clientSocket.getInetAddress(), !SERVER_MODE.equals("virtual"));
+                if (rejection == null) {
+                    try {
+                        threadPool.execute(new ClientHandler(clientSocket));
+                        logger.log(Level.INFO, "New client connected: {0}", clientSocket.getInetAddress());
+                        continue;
+                    } catch (RejectedExecutionException e) {
+                        rejection = Responses.SERVER_BUSY;
+                        Metrics.overloadedConnections.incrementAndGet();
+                        logger.log(Level.WARNING, "Rejected {0}: connection queue full", clientSocket.getInetAddress());
+                    }
+                }
+                rejectConnection(clientSocket, rejection);
+            }
+        } catch (IOException e) {
+            logger.severe("Server error: " + e.getMessage());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    private static ExecutorService createThreadPool() {
+        if (SERVER_MODE.equals("virtual")) {
+            // Looked up reflectively so the server still compiles and runs on JDKs without virtual threads
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JVM; using the fixed thread pool.");
+            }
+        }
+        // Bounded queue: once MAX_QUEUED_CONNECTIONS sessions are waiting for a thread, new ones are shed
+        return new ThreadPoolExecutor(10, 10, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_CONNECTIONS));
+    }
+
+    // Returns the rejection to send, or null to admit. The thread pool bounds itself, so the session
+    // cap only applies where connections are otherwise unbounded (virtual threads and nio).
+    private static byte[] admissionCheck(InetAddress address, boolean poolBounded) {
+        if (!rateLimiter.tryAcquire(address)) {
+            Metrics.rateLimitedConnections.incrementAndGet();
+            logger.log(Level.WARNING, "Rejected {0}: rate limit exceeded", address);
+            return Responses.RATE_LIMITED;
+        }
+        if (!poolBounded && sessions.size() >= MAX_SESSIONS) {
+            Metrics.overloadedConnections.incrementAndGet();
+            logger.log(Level.WARNING, "Rejected {0}: session limit reached", address);
+            return Responses.SERVER_BUSY;
+        }
+        return null;
+    }
+
+    private static void rejectConnection(Socket socket, byte[] message) {
+        try (Socket s = socket) {
+            s.getOutputStream().write(message);
+        } catch (IOException ignored) {
+            // The client is being turned away anyway
+        }
+    }
+
+    private static void setupLogger() {
+        try {
+            AsyncLogHandler logHandler = new AsyncLogHandler("server.log", LOG_QUEUE_SIZE, LOG_BLOCK_WHEN_FULL);
+            logHandler.setFormatter(new SimpleFormatter());
+            logger.addHandler(logHandler);
+            logger.setUseParentHandlers(false);
+        } catch (IOException e) {
+            System.err.println("Failed to initialize logger: " + e.getMessage());
+        }
+    }
+
+    // Token buckets keyed by client address, refilled at ratePerSecond up to burst. Every accepted
+    // connection costs a token and every wrong password costs several, so a host that floods the
+    // server or guesses passwords is turned away at accept time instead of occupying a handler thread.
+    private static class RateLimiter {
+        private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+        private final double ratePerSecond;
+        private final double burst;
+        private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+        private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+        RateLimiter(double ratePerSecond, double burst) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+        }
+
+        boolean tryAcquire(InetAddress address) {
+            evictIdle();
+            return buckets.computeIfAbsent(address, a -> new TokenBucket()).take(1);
+        }
+
+        void penalize(InetAddress address, double cost) {
+            buckets.computeIfAbsent(address, a -> new TokenBucket()).charge(cost);
+        }
+
+        // Every SWEEP_INTERVAL_NANOS, drops buckets that have been idle long enough to be full again,
+        // so the map stays bounded. A dropped bucket comes back full, so one still paying off a
+        // penalty (up to 2 * burst / ratePerSecond seconds from -burst) is kept until it has.
+        private void evictIdle() {
+            long now = System.nanoTime();
+            long last = lastEviction.get();
+            if (now - last < SWEEP_INTERVAL_NANOS || !lastEviction.compareAndSet(last, now)) return;
+            buckets.values().removeIf(bucket -> bucket.fullAt(now));
+        }
+
+        private class TokenBucket {
+            private double tokens = burst;
+            private long lastRefill = System.nanoTime();
+
+            synchronized boolean take(double cost) {
+                refill();
+                if (tokens < cost) return false;
+                tokens -= cost;
+                return true;
+            }
+
+            // May go negative (down to -burst), which keeps a brute-forcing host locked out for longer
+            synchronized void charge(double cost) {
+                refill();
+                tokens = Math.max(-burst, tokens - cost);
+            }
+
+            // Whether refilling up to now would bring the bucket back to burst
+            synchronized boolean fullAt(long now) {
+                return tokens + (now - lastRefill) / 1e9 * ratePerSecond >= burst;
+            }
+
+            private void refill() {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+                lastRefill = now;
+            }
+        }
+    }
+
+    // Logging handler that only enqueues records on the calling thread. A single writer thread
+    // formats them and appends each batch to the log file with one buffered write, so request
+    // latency never depends on disk I/O. When the queue is full, records are either dropped
+    // (and counted) or the caller blocks, depending on friends.log.overflow.
+    private static class AsyncLogHandler extends Handler {
+        private static final int BATCH_SIZE = 512;
+
+        private final BlockingQueue<LogRecord> queue;
+        private final boolean blockWhenFull;
+        private final Writer writer;
+        private final Thread worker;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean closed;
+
+        AsyncLogHandler(String fileName, int capacity, boolean blockWhenFull) throws IOException {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.blockWhenFull = blockWhenFull;
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), "UTF-8"), 64 * 1024);
+            this.worker = new Thread(this::drain, "log-writer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if (closed || !isLoggable(record)) return;
+            // Resolve the caller now; it can't be inferred once the record is on the writer thread
+            record.getSourceMethodName();
+            if (blockWhenFull) {
+                try {
+                    queue.put(record);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (!queue.offer(record)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        private void drain() {
+            List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    LogRecord first = queue.poll(200, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    writeBatch(batch);
+                } catch (InterruptedException e) {
+                    // close() is the only interrupter; keep draining until the queue is empty
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void writeBatch(List<LogRecord> batch) {
+            java.util.logging.Formatter formatter = getFormatter();
+            try {
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    writer.write(formatter.format(new LogRecord(Level.WARNING, lost + " log records dropped (queue full)")));
+                }
+                for (LogRecord record : batch) {
+                    writer.write(formatter.format(record));
+                }
+                writer.flush();
+            } catch (IOException e) {
+                reportError("Failed to write log batch", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // The writer thread flushes after every batch
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            worker.interrupt();
+            try {
+                worker.join(5000);
+                writer.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                reportError("Failed to close log", e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    // Fails rather than starting empty: without the journal open, no mutation could be persisted,
+    // and the first compaction would overwrite the snapshot that failed to load
+    private static synchronized void loadDatabase() throws IOException {
+        Map<String, String> loaded = readDatabase();
+        journal.open();
+        friends.load(loaded);
+    }
+
+    // Latest snapshot (binary, or friends.txt if none has been written yet) with the journal replayed on top
+    private static Map<String, String> readDatabase() throws IOException {
+        Map<String, String> loaded = new HashMap<>();
+        File snapshotFile = new File(SNAPSHOT_FILE_NAME);
+        if (snapshotFile.exists()) {
+            try (SnapshotFile snapshot = SnapshotFile.open(snapshotFile)) {
+                for (int i = 0; i < snapshot.size(); i++) {
+                    loaded.put(snapshot.name(i), snapshot.number(i));
+                }
+            }
+            logger.info("Database loaded successfully.");
+            if (new File(FILE_NAME).exists()) {
+                logger.warning(FILE_NAME + " is not read or updated once " + SNAPSHOT_FILE_NAME
+                    + " exists; refresh it with \"java FriendDatabaseServer export " + FILE_NAME + "\" while the server is stopped.");
+            }
+        } else if (new File(FILE_NAME).exists()) {
+            loaded.putAll(readCsv(new File(FILE_NAME)));
+            logger.info("Database loaded successfully from " + FILE_NAME + ".");
+        } else {
+            logger.warning("No existing database found. Starting fresh.");
+        }
+
+        int replayed = journal.replay(loaded);
+        logger.info("Replayed " + replayed + " journal records.");
+        return loaded;
+    }
+
+    // Offline import/export between the binary snapshot and CSV. Run while the server is stopped.
+    private static void runCsvTool(String command, File csvFile) {
+        try {
+            Map<String, String> database = readDatabase();
+            if (command.equals("import")) {
+                Map<String, String> imported = readCsv(csvFile);
+                database.putAll(imported);
+                writeSnapshot(database);
+                journal.discard();
+                System.out.println("Imported " + imported.size() + " entries from " + csvFile + ".");
+            } else {
+                writeCsv(database, csvFile);
+                System.out.println("Exported " + database.size() + " entries to " + csvFile + ".");
+            }
+        } catch (IOException e) {
+            System.err.println(command + " failed: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> readCsv(File csvFile) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length == 2) {
+                    entries.put(parts[0].trim(), parts[1].trim());
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void writeCsv(Map<String, String> entries, File csvFile) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.UTF_8)))) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(entries).entrySet()) {
+                writer.println(entry.getKey() + "," + entry.getValue());
+            }
+            if (writer.checkError()) {
+                throw new IOException("Failed to write " + csvFile);
+            }
+        }
+    }
+
+    // Writes a full binary snapshot next to the live file and atomically swaps it in
+    private static void writeSnapshot(Map<String, String> snapshot) throws IOException {
+        long start = System.nanoTime();
+        File tmp = new File(SNAPSHOT_FILE_NAME + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            SnapshotFile.write(snapshot, new BufferedOutputStream(stream, 64 * 1024));
+            stream.getFD().sync();
+        }
+        // Assumes POSIX rename: the old friends.db is replaced atomically even if a mapping of it has
+        // not been collected yet. Windows refuses to replace a file that is still mapped.
+        Files.move(tmp.toPath(), new File(SNAPSHOT_FILE_NAME).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Metrics.snapshotWrite.record(System.nanoTime() - start);
+        logger.info("Database saved successfully.");
+    }
+
+    // Binary snapshot layout (big-endian):
+    //   int magic "FDB1" | int count | int[count] record offsets | records
+    // where each record is u16 length + UTF-8 name followed by u16 length + UTF-8 number,
+    // sorted by name. Nothing is searched in the file: startup decodes every record into the store
+    // (which rebuilds the n-gram index), so load time still grows with the database. It is faster
+    // than parsing friends.txt because there is no line splitting and no per-field parsing beyond
+    // the two lengths. Mapping the file is only how it is read. Java cannot unmap a file on demand;
+    // close() drops the reference so the mapping is released at the next collection, and it must
+    // not be used afterwards.
+    private static class SnapshotFile implements Closeable {
+        private static final int MAGIC = 0x46444231;
+
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private final int count;
+        private final int recordsStart;
+
+        private SnapshotFile(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+            this.channel = channel;
+            this.buffer = buffer;
+            if (buffer.capacity() < 8 || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a friends snapshot");
+            }
+            this.count = buffer.getInt(4);
+            this.recordsStart = 8 + count * 4;
+        }
+
+        static SnapshotFile open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                return new SnapshotFile(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        static void write(Map<String, String> entries, OutputStream stream) throws IOException {
+            List<String> names = new ArrayList<>(entries.keySet());
+            Collections.sort(names);
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(names.size());
+            int offset = 0;
+            byte[][] encoded = new byte[names.size() * 2][];
+            for (int i = 0; i < names.size(); i++) {
+                encoded[2 * i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+                encoded[2 * i + 1] = entries.get(names.get(i)).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(offset);
+                offset += 4 + encoded[2 * i].length + encoded[2 * i + 1].length;
+            }
+            for (byte[] field : encoded) {
+                if (field.length > 0xFFFF) {
+                    throw new IOException("Snapshot field too long: " + field.length + " bytes");
+                }
+                out.writeShort(field.length);
+                out.write(field);
+            }
+            out.flush();
+        }
+
+        int size() {
+            return count;
+        }
+
+        String name(int index) {
+            return readString(recordOffset(index));
+        }
+
+        String number(int index) {
+            int offset = recordOffset(index);
+            return readString(offset + 2 + (buffer.getShort(offset) & 0xFFFF));
+        }
+
+        private int recordOffset(int index) {
+            return recordsStart + buffer.getInt(8 + index * 4);
+        }
+
+        private String readString(int offset) {
+            byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 2);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            channel.close();
+        }
+    }
+
+    // Append-only log of mutations. Each add/delete is one line appended to friends.journal;
+    // on startup the journal is replayed over the latest snapshot. Once the journal grows past
+    // maxBytes it is rotated aside and folded into a fresh snapshot on a background thread.
+    private static class Journal {
+        static final char ADD = '+';
+        static final char DELETE = '-';
+        static final char BATCH = '*'; // "*<count>": the next count records were written together
+
+        private final File file;
+        private final File rotatedFile;
+        private final long maxBytes;
+        private final boolean fsync;
+        private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "journal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private FileOutputStream stream;
+        private long size;
+
+        Journal(File file, long maxBytes, boolean fsync) {
+            this.file = file;
+            this.rotatedFile = new File(file.getPath() + ".1");
+            this.maxBytes = maxBytes;
+            this.fsync = fsync;
+        }
+
+        // Applies the rotated journal (left behind by an interrupted compaction) and then the live one
+        int replay(Map<String, String> target) throws IOException {
+            int count = replayFile(rotatedFile, target);
+            count += replayFile(file, target);
+            if (rotatedFile.exists()) {
+                writeSnapshot(new HashMap<>(target));
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Could not reset " + file);
+                }
+                Files.delete(rotatedFile.toPath());
+            }
+            return count;
+        }
+
+        private int replayFile(File source, Map<String, String> target) throws IOException {
+            if (!source.exists()) return 0;
+            String content = new String(Files.readAllBytes(source.toPath()), "UTF-8");
+            String[] lines = content.split("\n", -1);
+            int count = 0;
+            int whole = 0; // chars of content made up of complete records
+            // The last element is either empty or a torn record from a crash mid-write
+            for (int i = 0; i < lines.length - 1; i++) {
+                String line = lines[i];
+                if (line.length() < 2) {
+                    whole += line.length() + 1;
+                    continue;
+                }
+                String body = line.substring(1);
+                if (line.charAt(0) == BATCH) {
+                    // A batch cut short by a crash is dropped as a whole, like a single torn record.
+                    // So is everything from a header that does not parse: its batch cannot be delimited.
+                    int batchSize = batchSize(body);
+                    if (batchSize < 0 || i + batchSize >= lines.length - 1) break;
+                    whole += line.length() + 1;
+                    continue;
+                }
+                whole += line.length() + 1;
+                if (line.charAt(0) == ADD) {
+                    int comma = body.lastIndexOf(',');
+                    if (comma <= 0) continue;
+                    target.put(body.substring(0, comma), body.substring(comma + 1));
+                    count++;
+                } else if (line.charAt(0) == DELETE) {
+                    target.remove(body);
+                    count++;
+                }
+            }
+            if (source.equals(file) && whole < content.length()) {
+                // Cut the torn tail off, or the next append would be joined onto it
+                try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+                    raf.setLength(content.substring(0, whole).getBytes(StandardCharsets.UTF_8).length);
+                }
+            }
+            return count;
+        }
+
+        // -1 when the header is torn or corrupt
+        private static int batchSize(String header) {
+            try {
+                return Math.max(-1, Integer.parseInt(header));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Drops the live journal once its records are part of a snapshot; only valid before open()
+        void discard() throws IOException {
+            Files.deleteIfExists(file.toPath());
+        }
+
+        void open() throws IOException {
+            lock.lock();
+            try {
+                stream = new FileOutputStream(file, true);
+                size = file.length();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Queues a record; it reaches the file on the next flush(). Called with the store's write lock
+        // held, so the order of pending records matches the order mutations were applied and the
+        // snapshot taken on rotation matches the journal.
+        void append(char op, String name, String number, Map<String, String> current) {
+            String record = op == ADD ? op + name + "," + number + "\n" : op + name + "\n";
+            lock.lock();
+            try {
+                byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+                pending.write(bytes, 0, bytes.length);
+                if (size + pending.size() >= maxBytes && !rotatedFile.exists()) {
+                    rotate(new HashMap<>(current));
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error writing journal: {0}", e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Queues a whole import behind a batch header. Rotation is only considered once the batch is
+        // complete, so its records always land in the same file.
+        void appendBatch(Map<String, String> batch, Map<String, String> current) {
+            StringBuilder records = new StringBuilder(batch.size() * 32);
+            records.append(BATCH).append(batch.size()).append('\n');
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                records.append(ADD).append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+            }
+            lock.lock();
+            try {
+                byte[] bytes = records.toString().getBytes(StandardCharsets.UTF_8);
+                pending.write(bytes, 0, bytes.length);
+                if (size + pending.size() >= maxBytes && !rotatedFile.exists()) {
+                    rotate(new HashMap<>(current));
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error writing journal: {0}", e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Writes every pending record with a single write (and fsync, if enabled). Front ends call this
+        // once per batch of commands, before the batch's responses are sent.
+        void flush() {
+            lock.lock();
+            try {
+                writePending();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error writing journal: {0}", e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void writePending() throws IOException {
+            if (pending.size() == 0) return;
+            long start = System.nanoTime();
+            pending.writeTo(stream);
+            if (fsync) {
+                stream.getFD().sync();
+            }
+            size += pending.size();
+            pending.reset();
+            Metrics.journalFlush.record(System.nanoTime() - start);
+        }
+
+        private void rotate(Map<String, String> snapshot) throws IOException {
+            writePending();
+            stream.close();
+            Files.move(file.toPath(), rotatedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            open();
+            compactor.execute(() -> compact(snapshot));
+        }
+
+        private void compact(Map<String, String> snapshot) {
+            try {
+                writeSnapshot(snapshot);
+                lock.lock();
+                try {
+                    Files.delete(rotatedFile.toPath());
+                } finally {
+                    lock.unlock();
+                }
+                logger.info("Journal compacted into " + SNAPSHOT_FILE_NAME + " (" + snapshot.size() + " entries).");
+            } catch (IOException e) {
+                logger.severe("Error compacting journal: " + e.getMessage());
+            }
+        }
+    }
+
+    // Thrown when the shard that owns a name cannot be reached
+    private static class ShardUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ShardUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    // Spreads names over the nodes in friends.shards with a consistent-hash ring (64 virtual points
+    // per node). add/delete go to the owning node; search and list fan out to every node in parallel
+    // and merge. Without friends.shards the ring is just this node and every call stays local.
+    // Nodes talk to each other over a separate shard port using the line protocol in ShardServer.
+    private static class ShardRouter {
+        private static final int VIRTUAL_NODES = 64;
+
+        private final TreeMap<Long, String> ring = new TreeMap<>();
+        private final Map<String, ShardPeer> peers = new LinkedHashMap<>();
+        private final String self;
+        private final ExecutorService fanOutPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Merged result of a fan-out; complete is false if any shard failed to answer. total counts the
+        // matching entries on every node that answered, which is more than entries holds for a page.
+        static class FanOut {
+            final List<Map.Entry<String, String>> entries;
+            final long total;
+            final boolean complete;
+
+            FanOut(List<Map.Entry<String, String>> entries, long total, boolean complete) {
+                this.entries = entries;
+                this.total = total;
+                this.complete = complete;
+            }
+        }
+
+        ShardRouter(String shardList, String self) {
+            this.self = self == null ? "local" : self;
+            if (shardList == null) {
+                addToRing(this.self);
+                return;
+            }
+            for (String address : shardList.split(",")) {
+                address = address.trim();
+                addToRing(address);
+                if (!address.equals(this.self)) {
+                    peers.put(address, new ShardPeer(address));
+                }
+            }
+            if (!ring.containsValue(this.self)) {
+                throw new IllegalArgumentException("friends.shard.self must be one of friends.shards");
+            }
+        }
+
+        private void addToRing(String address) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(address + "#" + i), address);
+            }
+        }
+
+        private static long hash(String key) {
+            try {
+                byte[] digest = java.security.MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+                return ByteBuffer.wrap(digest).getLong();
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // True when some names live on other nodes, so commands may wait on shard RPCs
+        boolean isDistributed() {
+            return !peers.isEmpty();
+        }
+
+        void start() {
+            if (!peers.isEmpty()) {
+                ShardServer.start(Integer.parseInt(self.substring(self.lastIndexOf(':') + 1)));
+            }
+        }
+
+        // Null when this node owns the name
+        private ShardPeer owner(String name) {
+            if (peers.isEmpty()) return null;
+            Map.Entry<Long, String> point = ring.ceilingEntry(hash(name));
+            String address = (point != null ? point : ring.firstEntry()).getValue();
+            return peers.get(address);
+        }
+
+        String putIfAbsent(String name, String number) throws ShardUnavailableException {
+            ShardPeer peer = owner(name);
+            if (peer == null) return friends.putIfAbsent(name, number);
+            List<String> reply = peer.call("PUT " + name + "\t" + number, false);
+            return reply.get(0).equals("OK") ? null : reply.get(0).substring("EXISTS\t".length());
+        }
+
+        boolean replace(String name, String expected, String number) throws ShardUnavailableException {
+            ShardPeer peer = owner(name);
+            if (peer == null) return friends.replace(name, expected, number);
+            return peer.call("REPLACE " + name + "\t" + expected + "\t" + number, false).get(0).equals("OK");
+        }
+
+        boolean remove(String name) throws ShardUnavailableException {
+            ShardPeer peer = owner(name);
+            if (peer == null) return friends.remove(name);
+            return peer.call("DEL " + name, false).get(0).equals("OK");
+        }
+
+        // Sends each node its share of the batch in parallel; every node applies its share atomically.
+        // Returns how many names were new. If a node is down the other shares are still applied.
+        int importAll(Map<String, String> batch) throws ShardUnavailableException {
+            Map<String, String> local = new LinkedHashMap<>();
+            Map<ShardPeer, StringBuilder> remote = new LinkedHashMap<>();
+            Map<ShardPeer, Integer> remoteCounts = new HashMap<>();
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                ShardPeer peer = owner(entry.getKey());
+                if (peer == null) {
+                    local.put(entry.getKey(), entry.getValue());
+                } else {
+                    remote.computeIfAbsent(peer, p -> new StringBuilder())
+                        .append('\n').append(entry.getKey()).append('\t').append(entry.getValue());
+                    remoteCounts.merge(peer, 1, Integer::sum);
+                }
+            }
+            List<Future<List<String>>> replies = new ArrayList<>();
+            for (Map.Entry<ShardPeer, StringBuilder> share : remote.entrySet()) {
+                String request = "IMPORT " + remoteCounts.get(share.getKey()) + share.getValue();
+                replies.add(fanOutPool.submit(() -> share.getKey().call(request, false)));
+            }
+            int added = local.isEmpty() ? 0 : friends.importAll(local);
+            ShardUnavailableException failure = null;
+            for (Future<List<String>> reply : replies) {
+                try {
+                    added += Integer.parseInt(reply.get().get(0).substring("OK\t".length()));
+                } catch (ExecutionException e) {
+                    failure = new ShardUnavailableException("Import share failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new ShardUnavailableException("Interrupted during import", e);
+                }
+            }
+            if (failure != null) throw failure;
+            return added;
+        }
+
+        FanOut search(String query) {
+            List<Map.Entry<String, String>> local = friends.search(query);
+            return fanOut(local, local.size(), "SEARCH " + query, false);
+        }
+
+        // Every entry sorted by name, for export
+        FanOut snapshot() {
+            List<Map.Entry<String, String>> local = friends.snapshot();
+            return fanOut(local, local.size(), "LIST", true);
+        }
+
+        // Entries offset..offset+limit of the name-sorted listing. No node can contribute more than its
+        // own first offset+limit names to that range, so that is all each one sends.
+        FanOut page(int offset, int limit) {
+            int wanted = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+            List<Map.Entry<String, String>> local = friends.snapshot();
+            FanOut merged = fanOut(local.subList(0, Math.min(wanted, local.size())), local.size(), "LIST " + wanted, true);
+            List<Map.Entry<String, String>> entries = merged.entries;
+            int end = Math.min(wanted, entries.size());
+            return new FanOut(new ArrayList<>(entries.subList(Math.min(offset, end), end)), merged.total, merged.complete);
+        }
+
+        private FanOut fanOut(List<Map.Entry<String, String>> local, long localTotal, String request, boolean sorted) {
+            if (peers.isEmpty()) return new FanOut(local, localTotal, true);
+
+            List<Future<List<String>>> replies = new ArrayList<>();
+            for (ShardPeer peer : peers.values()) {
+                replies.add(fanOutPool.submit(() -> peer.call(request, true)));
+            }
+            List<Map.Entry<String, String>> merged = new ArrayList<>(local);
+            long total = localTotal;
+            boolean complete = true;
+            for (Future<List<String>> reply : replies) {
+                try {
+                    List<String> lines = reply.get();
+                    total += Long.parseLong(lines.get(0).substring("OK\t".length()));
+                    for (String line : lines.subList(1, lines.size())) {
+                        int tab = line.indexOf('\t');
+                        merged.add(new AbstractMap.SimpleImmutableEntry<>(line.substring(0, tab), line.substring(tab + 1)));
+                    }
+                } catch (ExecutionException e) {
+                    complete = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    complete = false;
+                }
+            }
+            if (sorted) {
+                merged.sort(Map.Entry.comparingByKey());
+            }
+            return new FanOut(merged, total, complete);
+        }
+    }
+
+    // Client side of the shard protocol, keeping a few idle authenticated connections per peer
+    private static class ShardPeer {
+        private final String host;
+        private final int port;
+        private final ConcurrentLinkedQueue<Socket> idle = new ConcurrentLinkedQueue<>();
+
+        ShardPeer(String address) {
+            int colon = address.lastIndexOf(':');
+            this.host = address.substring(0, colon);
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        // Sends one request and returns the reply lines: a status line, any entries, without the END marker.
+        // A request that may have reached the peer is only sent again if it is idempotent (SEARCH, LIST)
+        // and the peer did not simply time out, which a second attempt would only repeat; a mutation is
+        // retried only when writing it to a pooled connection failed. An ERROR reply is an answer, not
+        // an outage, and is never retried.
+        List<String> call(String request, boolean idempotent) throws ShardUnavailableException {
+            List<String> reply = null;
+            Socket pooled = pooledConnection();
+            if (pooled != null) {
+                boolean sent = false;
+                try {
+                    send(pooled, request);
+                    sent = true;
+                    reply = receive(pooled);
+                } catch (IOException e) {
+                    close(pooled);
+                    if (sent && (!idempotent || e instanceof SocketTimeoutException)) throw unavailable(e);
+                }
+            }
+            if (reply == null) {
+                Socket socket = null;
+                try {
+                    socket = connect();
+                    send(socket, request);
+                    reply = receive(socket);
+                } catch (IOException e) {
+                    close(socket);
+                    throw unavailable(e);
+                }
+            }
+            if (reply.isEmpty() || reply.get(0).startsWith("ERROR")) {
+                throw new ShardUnavailableException("Shard " + host + ":" + port + " rejected the request: "
+                    + (reply.isEmpty() ? "empty reply" : reply.get(0)), null);
+            }
+            return reply;
+        }
+
+        // Skips pooled connections the peer has closed (it restarted, say). The check is a zero-wait read
+        // on the channel, so it costs no round trip and happens before anything is sent.
+        private Socket pooledConnection() {
+            Socket socket;
+            while ((socket = idle.poll()) != null) {
+                SocketChannel channel = socket.getChannel();
+                try {
+                    channel.configureBlocking(false);
+                    int n = channel.read(ByteBuffer.allocate(1));
+                    channel.configureBlocking(true);
+                    if (n == 0) return socket;
+                } catch (IOException e) {
+                    // fall through and drop it
+                }
+                close(socket); // closed by the peer, or holding stray bytes and out of step
+            }
+            return null;
+        }
+
+        private Socket connect() throws IOException {
+            Socket socket = SocketChannel.open().socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), 2000);
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write((ADMIN_PASSWORD + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                close(socket);
+                throw e;
+            }
+            return socket;
+        }
+
+        private static void send(Socket socket, String request) throws IOException {
+            OutputStream out = socket.getOutputStream();
+            out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        // Reads a whole reply; the connection is then back in step and returns to the pool
+        private List<String> receive(Socket socket) throws IOException {
+            List<String> reply = new ArrayList<>();
+            String line;
+            while (!(line = readLine(socket.getInputStream())).equals("END")) {
+                reply.add(line);
+            }
+            idle.add(socket);
+            return reply;
+        }
+
+        private ShardUnavailableException unavailable(IOException cause) {
+            return new ShardUnavailableException("Shard " + host + ":" + port + " unavailable", cause);
+        }
+
+        private static void close(Socket socket) {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // Unbuffered so no bytes of the next reply are read ahead and lost when the socket goes back to the pool
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) throw new EOFException("Shard closed the connection");
+                line.write(b);
+            }
+            return line.toString("UTF-8");
+        }
+    }
+
+    // Server side of the shard protocol. After the admin password, each request is one line:
+    //   PUT name<TAB>number              -> OK | EXISTS<TAB>number
+    //   REPLACE name<TAB>old<TAB>number  -> OK | CONFLICT
+    //   DEL name                         -> OK | MISSING
+    //   IMPORT count, then count name<TAB>number lines -> OK<TAB>new names
+    //   SEARCH query                     -> OK<TAB>matches, then name<TAB>number lines
+    //   LIST [count]                     -> OK<TAB>entries, then the first count by name (all without count)
+    // and every reply ends with an END line. Only this node's own entries are touched.
+    // Peers pass the same rate limiter as clients, and a wrong password is charged the same way.
+    // A request that would leave the connection out of step (a bad IMPORT count or row) gets an
+    // ERROR reply and the connection is closed; peers reconnect on their next call.
+    private static class ShardServer {
+        private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+        private static final int IDLE_TIMEOUT_MILLIS = 60000; // pooled peer connections reconnect after this
+
+        static void start(int port) {
+            ServerSocket serverSocket;
+            try {
+                InetAddress address = SHARD_BIND == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(SHARD_BIND);
+                serverSocket = new ServerSocket(port, ACCEPT_BACKLOG, address);
+            } catch (IOException e) {
+                logger.severe("Shard port unavailable: " + e.getMessage());
+                return;
+            }
+            ExecutorService workers = new ThreadPoolExecutor(SHARD_THREADS, SHARD_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "shard-server");
+                    t.setDaemon(true);
+                    return t;
+                });
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        if (admissionCheck(socket.getInetAddress(), true) != null) {
+                            socket.close();
+                            continue;
+                        }
+                        try {
+                            workers.execute(() -> serve(socket));
+                        } catch (RejectedExecutionException e) {
+                            logger.log(Level.WARNING, "Rejected shard connection from {0}: all shard threads busy", socket.getInetAddress());
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Shard accept failed: {0}", e.getMessage());
+                    }
+                }
+            }, "shard-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            logger.info("Shard protocol listening on " + serverSocket.getInetAddress().getHostAddress() + ":" + port);
+        }
+
+        private static void serve(Socket socket) {
+            InetAddress address = socket.getInetAddress();
+            try (Socket s = socket;
+                 LineReader in = new LineReader(s.getInputStream());
+                 Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                if (!ADMIN_PASSWORD.equals(in.readLine())) {
+                    logger.log(Level.WARNING, "Unauthorized shard connection from {0}", address);
+                    rateLimiter.penalize(address, AUTH_FAILURE_COST);
+                    return;
+                }
+                s.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                String request;
+                while ((request = in.readLine()) != null) {
+                    try {
+                        handle(request, in, out);
+                    } catch (ProtocolException e) {
+                        logger.log(Level.WARNING, "Malformed shard request from {0}: {1}", new Object[] { address, e.getMessage() });
+                        out.write("ERROR " + e.getMessage() + "\nEND\n");
+                        out.flush();
+                        return;
+                    }
+                    out.write("END\n");
+                    out.flush();
+                }
+            } catch (SocketTimeoutException e) {
+                // Idle or silent peer; it opens a new connection when it next needs one
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Shard connection error: {0}", e.getMessage());
+            }
+        }
+
+        private static void handle(String request, LineReader in, Writer out) throws IOException {
+            int space = request.indexOf(' ');
+            String verb = space < 0 ? request : request.substring(0, space);
+            String[] args = space < 0 ? new String[0] : request.substring(space + 1).split("\t");
+            switch (verb) {
+                case "PUT": {
+                    if (READ_ONLY || args.length != 2 || !validEntry(args[0], args[1])) break;
+                    String existing = friends.putIfAbsent(args[0], args[1]);
+                    journal.flush();
+                    out.write(existing == null ? "OK\n" : "EXISTS\t" + existing + "\n");
+                    return;
+                }
+                case "REPLACE": {
+                    if (READ_ONLY || args.length != 3 || !validEntry(args[0], args[2])) break;
+                    boolean replaced = friends.replace(args[0], args[1], args[2]);
+                    journal.flush();
+                    out.write(replaced ? "OK\n" : "CONFLICT\n");
+                    return;
+                }
+                case "DEL": {
+                    if (READ_ONLY || args.length != 1) break;
+                    boolean removed = friends.remove(args[0]);
+                    journal.flush();
+                    out.write(removed ? "OK\n" : "MISSING\n");
+                    return;
+                }
+                case "IMPORT": {
+                    if (args.length != 1) break;
+                    // Read the rows even on a replica, so the connection stays in step
+                    int count = parseCount(args[0]);
+                    if (count < 0 || count > MAX_IMPORT_ROWS) throw new ProtocolException("IMPORT count " + args[0]);
+                    Map<String, String> batch = new LinkedHashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        String row = in.readLine();
+                        if (row == null) throw new EOFException("Import cut short");
+                        int tab = row.indexOf('\t');
+                        if (tab < 0 || !validEntry(row.substring(0, tab), row.substring(tab + 1))) {
+                            throw new ProtocolException("IMPORT row " + (i + 1));
+                        }
+                        batch.put(row.substring(0, tab), row.substring(tab + 1));
+                    }
+                    if (READ_ONLY) break;
+                    int added = friends.importAll(batch);
+                    journal.flush();
+                    out.write("OK\t" + added + "\n");
+                    return;
+                }
+                case "SEARCH": {
+                    if (args.length != 1) break;
+                    List<Map.Entry<String, String>> matches = friends.search(args[0]);
+                    writeEntries(matches, matches.size(), out);
+                    return;
+                }
+                case "LIST": {
+                    if (args.length > 1) break;
+                    List<Map.Entry<String, String>> all = friends.snapshot();
+                    int count = args.length == 1 ? parseCount(args[0]) : all.size();
+                    if (count < 0) break;
+                    writeEntries(all.subList(0, Math.min(count, all.size())), all.size(), out);
+                    return;
+                }
+                default:
+                    break;
+            }
+            out.write("ERROR " + verb + "\n");
+        }
+
+        // The same rules as the client commands, so a peer cannot put a name into the journal that they would refuse
+        private static boolean validEntry(String name, String number) {
+            return NAME_PATTERN.matcher(name).matches() && PHONE_PATTERN.matcher(number).matches();
+        }
+
+        // -1 when the text is not a number
+        private static int parseCount(String text) {
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static void writeEntries(List<Map.Entry<String, String>> entries, int total, Writer out) throws IOException {
+            out.write("OK\t" + total + "\n");
+            for (Map.Entry<String, String> entry : entries) {
+                out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    // Leader half of replication. Every mutation the store applies is numbered and queued, still
+    // under the store's write lock, to each connected follower; a sender thread per follower drains
+    // its queue to the socket. A follower first sends the admin password, as on the shard port, and
+    // is only attached once it matches. Stream lines:
+    //   SNAPSHOT <seq> <count>   followed by <count> "name,number" lines (sent once on connect)
+    //   R <seq> <millis> <record> one mutation, record in journal form ("+name,number" / "-name")
+    //   P <seq> <millis>          heartbeat while idle, so followers can measure lag
+    private static class ReplicationLeader {
+        private static final int FOLLOWER_QUEUE_SIZE = 65536;
+        static final int HEARTBEAT_MILLIS = 1000;
+        private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+        private static final int MAX_PENDING_FOLLOWERS = 8; // links still waiting for their password
+
+        final List<FollowerLink> followers = new CopyOnWriteArrayList<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        volatile long sequence; // only advanced under the store's write lock
+
+        void start(int port) {
+            ServerSocket serverSocket;
+            try {
+                InetAddress address = REPLICATION_BIND == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(REPLICATION_BIND);
+                serverSocket = new ServerSocket(port, 50, address);
+            } catch (IOException e) {
+                logger.severe("Replication disabled: " + e.getMessage());
+                return;
+            }
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        // The same per-address limit as the client port, and a cap on unauthenticated
+                        // links, so nobody can tie up sender threads that just sit in authenticate()
+                        if (admissionCheck(socket.getInetAddress(), true) != null) {
+                            socket.close();
+                            continue;
+                        }
+                        if (pending.incrementAndGet() > MAX_PENDING_FOLLOWERS) {
+                            pending.decrementAndGet();
+                            logger.log(Level.WARNING, "Rejected {0}: too many unauthenticated follower links", socket.getInetAddress());
+                            socket.close();
+                            continue;
+                        }
+                        logger.log(Level.INFO, "Follower connected: {0}", socket.getRemoteSocketAddress());
+                        new FollowerLink(socket).start();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Replication accept failed: {0}", e.getMessage());
+                    }
+                }
+            }, "replication-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            logger.info("Replication leader listening on " + serverSocket.getInetAddress().getHostAddress() + ":" + port);
+        }
+
+        void publish(char op, String name, String number) {
+            long seq = ++sequence;
+            String line = "R " + seq + " " + System.currentTimeMillis() + " "
+                + (op == Journal.ADD ? op + name + "," + number : op + name);
+            for (FollowerLink link : followers) {
+                if (!link.queue.offer(line)) {
+                    // Too far behind to catch up from the queue; it will resync from a fresh snapshot
+                    logger.log(Level.WARNING, "Follower {0} fell behind; disconnecting.", link.socket.getRemoteSocketAddress());
+                    link.close();
+                }
+            }
+        }
+
+        class FollowerLink {
+            final Socket socket;
+            final BlockingQueue<String> queue = new ArrayBlockingQueue<>(FOLLOWER_QUEUE_SIZE);
+            private Map<String, String> snapshot;
+            private long snapshotSequence;
+
+            FollowerLink(Socket socket) {
+                this.socket = socket;
+            }
+
+            void bootstrap(Map<String, String> snapshot, long sequence) {
+                this.snapshot = snapshot;
+                this.snapshotSequence = sequence;
+            }
+
+            void start() {
+                Thread sender = new Thread(this::send, "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            }
+
+            private void send() {
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024)) {
+                    boolean authenticated;
+                    try {
+                        authenticated = authenticate();
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                    if (!authenticated) {
+                        logger.log(Level.WARNING, "Unauthorized replication connection from {0}", socket.getInetAddress());
+                        rateLimiter.penalize(socket.getInetAddress(), AUTH_FAILURE_COST);
+                        return;
+                    }
+                    friends.attachFollower(this);
+                    out.write("SNAPSHOT " + snapshotSequence + " " + snapshot.size() + "\n");
+                    for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                        out.write(entry.getKey() + "," + entry.getValue() + "\n");
+                    }
+                    snapshot = null;
+                    out.flush();
+
+                    List<String> batch = new ArrayList<>();
+                    while (!socket.isClosed()) {
+                        String line = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                        if (line == null) {
+                            out.write("P " + sequence + " " + System.currentTimeMillis() + "\n");
+                        } else {
+                            batch.add(line);
+                            queue.drainTo(batch);
+                            for (String record : batch) {
+                                out.write(record);
+                                out.write('\n');
+                            }
+                            batch.clear();
+                        }
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    logger.log(Level.INFO, "Follower disconnected: {0}", socket.getRemoteSocketAddress());
+                } finally {
+                    close();
+                }
+            }
+
+            // Reads the password line unbuffered, so nothing after it is consumed
+            private boolean authenticate() throws IOException {
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                InputStream in = socket.getInputStream();
+                int b;
+                while ((b = in.read()) != '\n') {
+                    if (b < 0 || line.size() > 256) return false;
+                    line.write(b);
+                }
+                socket.setSoTimeout(0);
+                return ADMIN_PASSWORD.equals(line.toString("UTF-8").trim());
+            }
+
+            void close() {
+                followers.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Follower half of replication: keeps a read-only copy of the leader's store, reconnecting and
+    // re-bootstrapping from a fresh snapshot whenever the stream breaks. The leader sends at least a
+    // heartbeat every second, so a stream silent for a few of them is treated as broken.
+    private static class ReplicationFollower {
+        private static final int READ_TIMEOUT_MILLIS = 3 * ReplicationLeader.HEARTBEAT_MILLIS;
+
+        static volatile long appliedSequence;
+        static volatile long leaderSequence;
+        static volatile long lagMillis;
+        static volatile boolean connected;
+
+        static void start(String leader) {
+            int colon = leader.lastIndexOf(':');
+            String host = leader.substring(0, colon);
+            int port = Integer.parseInt(leader.substring(colon + 1));
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    try (Socket socket = new Socket()) {
+                        socket.connect(new InetSocketAddress(host, port), 2000);
+                        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                        socket.getOutputStream().write((ADMIN_PASSWORD + "\n").getBytes(StandardCharsets.UTF_8));
+                        logger.log(Level.INFO, "Connected to replication leader {0}", leader);
+                        follow(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Replication stream from {0} lost: {1}", new Object[] { leader, e.getMessage() });
+                    }
+                    connected = false;
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "replication-follower");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void follow(BufferedReader in) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                switch (parts[0]) {
+                    case "SNAPSHOT":
+                        long sequence = Long.parseLong(parts[1]);
+                        int count = Integer.parseInt(parts[2]);
+                        Map<String, String> snapshot = new HashMap<>(count * 2);
+                        for (int i = 0; i < count; i++) {
+                            String entry = in.readLine();
+                            if (entry == null) throw new EOFException("Snapshot truncated");
+                            int comma = entry.lastIndexOf(',');
+                            snapshot.put(entry.substring(0, comma), entry.substring(comma + 1));
+                        }
+                        friends.resetTo(snapshot);
+                        appliedSequence = sequence;
+                        leaderSequence = sequence;
+                        connected = true;
+                        logger.info("Replica bootstrapped with " + count + " entries at sequence " + sequence);
+                        break;
+                    case "R":
+                        String record = parts[3];
+                        String body = record.substring(1);
+                        if (record.charAt(0) == Journal.ADD) {
+                            int comma = body.lastIndexOf(',');
+                            friends.applyReplicated(Journal.ADD, body.substring(0, comma), body.substring(comma + 1));
+                        } else {
+                            friends.applyReplicated(Journal.DELETE, body, null);
+                        }
+                        appliedSequence = Long.parseLong(parts[1]);
+                        leaderSequence = Math.max(leaderSequence, appliedSequence);
+                        lagMillis = System.currentTimeMillis() - Long.parseLong(parts[2]);
+                        break;
+                    case "P":
+                        leaderSequence = Long.parseLong(parts[1]);
+                        lagMillis = System.currentTimeMillis() - Long.parseLong(parts[2]);
+                        break;
+                    default:
+                        logger.log(Level.WARNING, "Unexpected replication line: {0}", line);
+                }
+            }
+        }
+    }
+
+    // Friend entries backed by a ConcurrentHashMap. search and list iterate it without taking any
+    // lock, so readers never wait on writers or on disk. Writers serialize on a ReentrantLock (not
+    // synchronized, so virtual threads don't pin) to keep journal records in the order they were applied.
+    private static class FriendStore {
+        private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+        private final NGramIndex index = new NGramIndex();
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        void load(Map<String, String> initial) {
+            entries.putAll(initial);
+            initial.keySet().forEach(index::add);
+        }
+
+        // Adds the entry only if the name is free; returns the existing number otherwise
+        String putIfAbsent(String name, String number) {
+            lockForWrite();
+            try {
+                String existing = entries.putIfAbsent(name, number);
+                if (existing == null) {
+                    index.add(name);
+                    journal.append(Journal.ADD, name, number, entries);
+                    publish(Journal.ADD, name, number);
+                }
+                return existing;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Overwrites the entry only if it still holds the number the client agreed to replace
+        boolean replace(String name, String expected, String number) {
+            lockForWrite();
+            try {
+                if (!entries.replace(name, expected, number)) {
+                    return false;
+                }
+                journal.append(Journal.ADD, name, number, entries);
+                publish(Journal.ADD, name, number);
+                return true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        boolean remove(String name) {
+            lockForWrite();
+            try {
+                if (entries.remove(name) == null) {
+                    return false;
+                }
+                index.remove(name);
+                journal.append(Journal.DELETE, name, null, entries);
+                publish(Journal.DELETE, name, null);
+                return true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Upserts a whole import under one lock hold and journals it as one batch, so it is persisted
+        // by a single write and other writers never see it half applied. Returns how many names were new.
+        int importAll(Map<String, String> batch) {
+            lockForWrite();
+            try {
+                int added = 0;
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    if (entries.put(entry.getKey(), entry.getValue()) == null) {
+                        index.add(entry.getKey());
+                        added++;
+                    }
+                    publish(Journal.ADD, entry.getKey(), entry.getValue());
+                }
+                journal.appendBatch(batch, entries);
+                return added;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Follower side: replaces the whole store with a snapshot received from the leader
+        void resetTo(Map<String, String> snapshot) {
+            lockForWrite();
+            try {
+                for (String name : entries.keySet()) {
+                    index.remove(name);
+                }
+                entries.clear();
+                load(snapshot);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Follower side: applies one mutation from the leader's stream, bypassing the journal
+        void applyReplicated(char op, String name, String number) {
+            lockForWrite();
+            try {
+                if (op == Journal.ADD) {
+                    if (entries.put(name, number) == null) {
+                        index.add(name);
+                    }
+                } else if (entries.remove(name) != null) {
+                    index.remove(name);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        // Leader side: registers a follower together with a snapshot taken at the same point in the stream
+        void attachFollower(ReplicationLeader.FollowerLink link) {
+            lockForWrite();
+            try {
+                link.bootstrap(new HashMap<>(entries), replication.sequence);
+                replication.followers.add(link);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void publish(char op, String name, String number) {
+            if (replication != null) {
+                replication.publish(op, name, number);
+            }
+        }
+
+        private void lockForWrite() {
+            long start = System.nanoTime();
+            writeLock.lock();
+            Metrics.storeLockWait.record(System.nanoTime() - start);
+        }
+
+        // Case-insensitive substring search driven by the n-gram index
+        List<Map.Entry<String, String>> search(String query) {
+            List<Map.Entry<String, String>> matches = new ArrayList<>();
+            for (String name : index.candidates(query)) {
+                if (query.length() > NGramIndex.MAX_GRAM && !containsIgnoreCase(name, query)) continue;
+                String number = entries.get(name);
+                if (number != null) {
+                    matches.add(new AbstractMap.SimpleImmutableEntry<>(name, number));
+                }
+            }
+            return matches;
+        }
+
+        private static boolean containsIgnoreCase(String text, String query) {
+            for (int i = 0; i + query.length() <= text.length(); i++) {
+                if (text.regionMatches(true, i, query, 0, query.length())) return true;
+            }
+            return false;
+        }
+
+        // Point-in-time copy sorted by name, giving list a stable order to page through
+        List<Map.Entry<String, String>> snapshot() {
+            List<Map.Entry<String, String>> copy = new ArrayList<>(entries.size());
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            copy.sort(Map.Entry.comparingByKey());
+            return copy;
+        }
+    }
+
+    // Maps every lowercased 1-, 2- and 3-character substring of a name to the names containing it.
+    // A query of up to three characters is answered by a single posting set; longer queries scan the
+    // rarest of their trigrams and verify, so search cost follows the match count, not the database size.
+    // Only FriendStore writers (holding its write lock) mutate the index; readers never lock.
+    private static class NGramIndex {
+        static final int MAX_GRAM = 3;
+
+        private final ConcurrentHashMap<String, Set<String>> postings = new ConcurrentHashMap<>();
+
+        void add(String name) {
+            for (String gram : grams(name)) {
+                postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(name);
+            }
+        }
+
+        void remove(String name) {
+            for (String gram : grams(name)) {
+                postings.computeIfPresent(gram, (k, names) -> {
+                    names.remove(name);
+                    return names.isEmpty() ? null : names;
+                });
+            }
+        }
+
+        // Names that may contain query (already lowercased); exact when query is at most MAX_GRAM long
+        Collection<String> candidates(String query) {
+            if (query.isEmpty()) return Collections.emptySet();
+            if (query.length() <= MAX_GRAM) {
+                return postings.getOrDefault(query, Collections.emptySet());
+            }
+            Set<String> smallest = null;
+            for (int i = 0; i + MAX_GRAM <= query.length(); i++) {
+                Set<String> names = postings.get(query.substring(i, i + MAX_GRAM));
+                if (names == null) return Collections.emptySet();
+                if (smallest == null || names.size() < smallest.size()) {
+                    smallest = names;
+                }
+            }
+            return smallest;
+        }
+
+        private static Set<String> grams(String name) {
+            String lower = name.toLowerCase();
+            Set<String> grams = new HashSet<>();
+            for (int n = 1; n <= MAX_GRAM; n++) {
+                for (int i = 0; i + n <= lower.length(); i++) {
+                    grams.add(lower.substring(i, i + n));
+                }
+            }
+            return grams;
+        }
+    }
+
+    // Every open connection, keyed by a connection id so several sessions from one host are tracked
+    // separately. Entries are removed when the session closes, however the connection ended, and
+    // a reaper closes connections that have been silent for longer than the idle timeout.
+    private static class SessionRegistry {
+        private final ConcurrentHashMap<Long, SessionInfo> sessions = new ConcurrentHashMap<>();
+        private final AtomicLong nextId = new AtomicLong();
+        private final AtomicInteger authenticated = new AtomicInteger();
+
+        // connection is closed by the reaper; closing it must make the owning front end finish the session
+        SessionInfo open(InetAddress address, Closeable connection) {
+            SessionInfo info = new SessionInfo(nextId.incrementAndGet(), address, connection);
+            sessions.put(info.id, info);
+            return info;
+        }
+
+        void authenticate(SessionInfo info) {
+            synchronized (info) {
+                if (info.closed || info.authenticated) return;
+                info.authenticated = true;
+                authenticated.incrementAndGet();
+            }
+        }
+
+        void close(SessionInfo info) {
+            synchronized (info) {
+                if (info.closed) return;
+                info.closed = true;
+                sessions.remove(info.id);
+                if (info.authenticated) {
+                    authenticated.decrementAndGet();
+                }
+            }
+            logger.log(Level.INFO, "Session {0,number,#} from {1} closed after {2,number,#} ms: {3,number,#} commands, {4,number,#} bytes in, {5,number,#} bytes out",
+                new Object[] { info.id, info.address, System.currentTimeMillis() - info.startMillis,
+                    info.commands.get(), info.bytesIn.get(), info.bytesOut.get() });
+        }
+
+        int size() {
+            return sessions.size();
+        }
+
+        int authenticatedCount() {
+            return authenticated.get();
+        }
+
+        void startReaper(long idleTimeoutMillis) {
+            long period = Math.max(1000, Math.min(idleTimeoutMillis / 4, 30_000));
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-reaper");
+                t.setDaemon(true);
+                return t;
+            });
+            reaper.scheduleAtFixedRate(() -> reapIdle(idleTimeoutMillis), period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void reapIdle(long idleTimeoutMillis) {
+            long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+            for (SessionInfo info : sessions.values()) {
+                if (info.lastActivityMillis >= cutoff) continue;
+                logger.log(Level.INFO, "Closing idle session {0,number,#} from {1}", new Object[] { info.id, info.address });
+                close(info);
+                try {
+                    info.connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static class SessionInfo {
+        final long id;
+        final InetAddress address;
+        final Closeable connection;
+        final long startMillis = System.currentTimeMillis();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLong commands = new AtomicLong();
+        volatile long lastActivityMillis = startMillis;
+        private boolean authenticated; // guarded by this
+        private boolean closed; // guarded by this
+
+        SessionInfo(long id, InetAddress address, Closeable connection) {
+            this.id = id;
+            this.address = address;
+            this.connection = connection;
+        }
+
+        void touch() {
+            lastActivityMillis = System.currentTimeMillis();
+        }
+    }
+
+    // Line reader over a socket stream with its own buffer, so the handler can tell a whole buffered
+    // line (pipelined behind the current one) from one the client is still sending. Lines end at '\n'
+    // with an optional '\r' before it, as with BufferedReader from telnet-style clients.
+    // Reads lines of at most MAX_LINE_BYTES; a longer one throws LineTooLongException instead of
+    // growing the buffer, so a client sending no newline cannot use up the heap
+    private static class LineReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[2 * MAX_LINE_BYTES];
+        private int start;
+        private int end;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        // Null at end of stream; a last line without '\n' is still returned
+        String readLine() throws IOException {
+            while (true) {
+                int newline = indexOfNewline();
+                if (newline >= 0) {
+                    return take(newline, newline + 1);
+                }
+                if (end - start > MAX_LINE_BYTES) {
+                    throw new LineTooLongException();
+                }
+                if (!fill()) {
+                    return start == end ? null : take(end, end);
+                }
+            }
+        }
+
+        // True when a complete line is buffered; only pulls in bytes the socket already holds.
+        // An overlong line is left for readLine to report once the batch before it has been answered.
+        boolean hasLine() throws IOException {
+            while (indexOfNewline() < 0) {
+                if (end - start > MAX_LINE_BYTES || in.available() <= 0 || !fill()) return false;
+            }
+            return true;
+        }
+
+        private int indexOfNewline() {
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == '\n') return i;
+            }
+            return -1;
+        }
+
+        private String take(int lineEnd, int next) {
+            int length = lineEnd - start;
+            if (length > 0 && buffer[lineEnd - 1] == '\r') length--;
+            String line = new String(buffer, start, length, StandardCharsets.UTF_8);
+            start = next;
+            return line;
+        }
+
+        private boolean fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) return false;
+            end += n;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LineTooLongException() {
+            super("Line longer than " + MAX_LINE_BYTES + " bytes");
+        }
+    }
 
-    public static void main(String[] args) {
-        setupLogger();
-        loadDatabase();
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            logger.info("Server started on port " + PORT);
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                logger.info("New client connected: " + clientSocket.getInetAddress());
-                threadPool.execute(new ClientHandler(clientSocket));
-            }
-        } catch (IOException e) {
-            logger.severe("Server error: " + e.getMessage());
-        } finally {
-            threadPool.shutdown();
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) counter.incrementAndGet();
+            return b;
         }
-    }
 
-    private static void setupLogger() {
-        try {
-            FileHandler fileHandler = new FileHandler("server.log", true);
-            fileHandler.setFormatter(new SimpleFormatter());
-            logger.addHandler(fileHandler);
-            logger.setUseParentHandlers(false);
-        } catch (IOException e) {
-            System.err.println("Failed to initialize logger: " + e.getMessage());
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) counter.addAndGet(n);
+            return n;
         }
     }
 
-    private static synchronized void loadDatabase() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 2) {
-                    friends.put(parts[0].trim(), parts[1].trim());
-                }
-            }
-            logger.info("Database loaded successfully.");
-        } catch (IOException e) {
-            logger.warning("No existing database found. Starting fresh.");
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
         }
-    }
 
-    private static synchronized void saveDatabase() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(FILE_NAME))) {
-            for (Map.Entry<String, String> entry : friends.entrySet()) {
-                writer.println(entry.getKey() + "," + entry.getValue());
-            }
-            logger.info("Database saved successfully.");
-        } catch (IOException e) {
-            logger.severe("Error saving database: " + e.getMessage());
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        // FilterOutputStream would otherwise forward arrays one byte at a time
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
         }
     }
 
@@ -83,177 +1898,1009 @@ public class FriendDatabaseServer {
 
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-                // Clear screen and display welcome message
-                out.print(AnsiUtils.clearScreen());
-                out.print(AnsiUtils.moveCursor(1, 1));
-                out.println(AnsiUtils.colorize("=== Friend Database Server ===", AnsiUtils.Color.BLUE));
-                out.println("Enter Admin Password:");
-
-                String password = in.readLine();
-                if (!ADMIN_PASSWORD.equals(password)) {
-                    logger.warning("Unauthorized access attempt from " + socket.getInetAddress());
-                    out.println(AnsiUtils.colorize("Access Denied. Disconnecting.", AnsiUtils.Color.RED));
+            SessionInfo info = sessions.open(socket.getInetAddress(), socket);
+            CommandSession session = new CommandSession(info);
+            try (LineReader in = new LineReader(new CountingInputStream(socket.getInputStream(), info.bytesIn))) {
+                ResponseWriter out = new ResponseWriter(new BufferedOutputStream(
+                    new CountingOutputStream(socket.getOutputStream(), info.bytesOut), 8192));
+
+                session.greet(out);
+                out.flush();
+
+                try {
+                    serve(in, out, session);
+                } catch (LineTooLongException e) {
+                    logger.log(Level.WARNING, "Disconnecting {0}: {1}", new Object[] { socket.getInetAddress(), e.getMessage() });
+                    out.write(Responses.LINE_TOO_LONG);
+                    out.flush();
+                    socket.shutdownOutput();
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) { // closed by the idle reaper otherwise
+                    logger.log(Level.SEVERE, "Client error: {0}", e.getMessage());
+                }
+            } finally {
+                session.close();
+                try {
                     socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void serve(LineReader in, ResponseWriter out, CommandSession session) throws IOException {
+            String input;
+            while ((input = in.readLine()) != null) {
+                boolean keepOpen = session.handleLine(input, out);
+                // Commands the client pipelined behind this one are already buffered; run them as one batch.
+                // Only whole lines count: waiting on the rest of a partial one would hold back the
+                // responses to commands that already ran.
+                for (int batched = 1; keepOpen && batched < MAX_PIPELINE_BATCH && in.hasLine(); batched++) {
+                    keepOpen = session.handleLine(in.readLine(), out);
+                }
+                journal.flush();
+                out.flush();
+                if (!keepOpen) {
                     return;
                 }
+            }
+        }
+    }
 
-                logger.info("Client authenticated: " + socket.getInetAddress());
-                out.println(AnsiUtils.colorize("Access Granted. Welcome!", AnsiUtils.Color.GREEN));
-                displayHelp(out);
+    // Line-at-a-time command state machine shared by the blocking handler and the selector loop.
+    // The overwrite prompt in "add" is a state of its own so that nothing ever blocks waiting for input.
+    private static class CommandSession {
+        private enum State { PASSWORD, COMMAND, CONFIRM_OVERWRITE, IMPORT, CLOSED }
 
-                // Track active user
-                activeUsers.add(socket.getInetAddress().toString());
-                logger.info("Active users: " + activeUsers.size());
+        private final SessionInfo info;
+        private final InetAddress address;
+        private State state = State.PASSWORD;
+        private String pendingName;
+        private String pendingNumber;
+        private String pendingExisting;
+        private Map<String, String> importBatch;
+        private int importLines;
+        private int importErrors;
+        private String importFirstError;
+        private long importStart; // when the first row arrived, so the wait for the client's upload is not counted
 
-                String input;
-                while ((input = in.readLine()) != null) {
-                    input = input.trim();
-                    if (input.isEmpty()) continue;
+        CommandSession(SessionInfo info) {
+            this.info = info;
+            this.address = info.address;
+        }
 
-                    String[] parts = input.split("\\s+", 3);
-                    if (parts.length == 0) continue;
+        void greet(ResponseWriter out) throws IOException {
+            // Clear screen and display welcome message
+            out.write(Responses.GREETING);
+        }
 
-                    String command = parts[0].toLowerCase();
-                    logger.info("Command received from " + socket.getInetAddress() + ": " + input);
+        // Returns false once the connection should be closed
+        boolean handleLine(String line, ResponseWriter out) throws IOException {
+            info.touch();
+            switch (state) {
+                case PASSWORD:
+                    return handlePassword(line, out);
+                case CONFIRM_OVERWRITE: {
+                    // The confirmed overwrite is the write half of an add, so it is timed as one
+                    long start = System.nanoTime();
+                    try {
+                        handleOverwriteResponse(line, out);
+                    } finally {
+                        Metrics.recordCommand("add", System.nanoTime() - start);
+                    }
+                    return true;
+                }
+                case IMPORT:
+                    handleImportLine(line, out);
+                    return true;
+                case COMMAND:
+                    return handleCommand(line, out);
+                default:
+                    return false;
+            }
+        }
 
-                    switch (command) {
-                        case "add":
-                            handleAddCommand(parts, in, out);
-                            break;
+        void close() {
+            if (state == State.CLOSED) return;
+            state = State.CLOSED;
+            sessions.close(info);
+        }
 
-                        case "search":
-                            handleSearchCommand(parts, out);
-                            break;
+        private boolean handlePassword(String password, ResponseWriter out) throws IOException {
+            if (!ADMIN_PASSWORD.equals(password)) {
+                logger.log(Level.WARNING, "Unauthorized access attempt from {0}", address);
+                rateLimiter.penalize(address, AUTH_FAILURE_COST);
+                out.write(Responses.ACCESS_DENIED);
+                close();
+                return false;
+            }
 
-                        case "delete":
-                            handleDeleteCommand(parts, out);
-                            break;
+            logger.log(Level.INFO, "Client authenticated: {0}", address);
+            out.write(Responses.ACCESS_GRANTED);
+            displayHelp(out);
 
-                        case "list":
-                            handleListCommand(out);
-                            break;
+            sessions.authenticate(info);
+            logger.log(Level.INFO, "Active users: {0,number,#}", sessions.authenticatedCount());
+            state = State.COMMAND;
+            return true;
+        }
 
-                        case "usercount":
-                            out.println("Active users: " + activeUsers.size());
-                            logger.info("Active users query from: " + socket.getInetAddress());
-                            break;
+        private boolean handleCommand(String input, ResponseWriter out) throws IOException {
+            input = input.trim();
+            if (input.isEmpty()) return true;
 
-                        case "help":
-                            displayHelp(out);
-                            break;
+            String[] parts = input.split("\\s+", 3);
+            if (parts.length == 0) return true;
 
-                        case "exit":
-                            out.println(AnsiUtils.colorize("Goodbye!", AnsiUtils.Color.BLUE));
-                            activeUsers.remove(socket.getInetAddress().toString());
-                            logger.info("Client disconnected: " + socket.getInetAddress());
-                            socket.close();
-                            return;
+            String command = parts[0].toLowerCase();
+            info.commands.incrementAndGet();
+            logger.log(Level.INFO, "Command received from {0}: {1}", new Object[] { address, input });
 
-                        default:
-                            out.println(AnsiUtils.colorize("Unknown command. Type 'help' for a list of commands.", AnsiUtils.Color.RED));
-                            break;
-                    }
+            long start = System.nanoTime();
+            try {
+                return dispatch(command, parts, out);
+            } finally {
+                // import is timed once its batch is applied, at the closing '.' line
+                if (!command.equals("import")) {
+                    Metrics.recordCommand(command, System.nanoTime() - start);
                 }
-            } catch (IOException e) {
-                logger.severe("Client error: " + e.getMessage());
             }
         }
 
-        private void handleAddCommand(String[] parts, BufferedReader in, PrintWriter out) throws IOException {
+        private boolean dispatch(String command, String[] parts, ResponseWriter out) throws IOException {
+            switch (command) {
+                case "add":
+                    if (READ_ONLY) {
+                        out.write(Responses.READ_ONLY);
+                        break;
+                    }
+                    handleAddCommand(parts, out);
+                    break;
+
+                case "search":
+                    handleSearchCommand(parts, out);
+                    break;
+
+                case "delete":
+                    if (READ_ONLY) {
+                        out.write(Responses.READ_ONLY);
+                        break;
+                    }
+                    handleDeleteCommand(parts, out);
+                    break;
+
+                case "list":
+                    handleListCommand(parts, out);
+                    break;
+
+                case "import":
+                    if (READ_ONLY) {
+                        out.write(Responses.READ_ONLY);
+                        break;
+                    }
+                    beginImport(out);
+                    break;
+
+                case "export":
+                    handleExportCommand(out);
+                    break;
+
+                case "usercount":
+                    out.printCount(Responses.ACTIVE_USERS, sessions.authenticatedCount());
+                    logger.log(Level.INFO, "Active users query from: {0}", address);
+                    break;
+
+                case "help":
+                    displayHelp(out);
+                    break;
+
+                case "exit":
+                    out.write(Responses.GOODBYE);
+                    close();
+                    logger.log(Level.INFO, "Client disconnected: {0}", address);
+                    return false;
+
+                default:
+                    out.write(Responses.UNKNOWN_COMMAND);
+                    break;
+            }
+            return true;
+        }
+
+        private void handleAddCommand(String[] parts, ResponseWriter out) throws IOException {
             if (parts.length == 3) {
                 String name = parts[1].trim();
                 String number = parts[2].trim();
 
                 if (!NAME_PATTERN.matcher(name).matches()) {
-                    out.println(AnsiUtils.colorize("Invalid name. Use only letters and spaces (1-30 characters).", AnsiUtils.Color.RED));
+                    out.write(Responses.INVALID_NAME);
                     return;
                 }
                 if (!PHONE_PATTERN.matcher(number).matches()) {
-                    out.println(AnsiUtils.colorize("Invalid phone number. Use 7-15 digits only.", AnsiUtils.Color.RED));
+                    out.write(Responses.INVALID_PHONE);
                     return;
                 }
 
-                synchronized (friends) {
-                    if (friends.containsKey(name)) {
-                        out.println(AnsiUtils.colorize("This name already exists. Overwrite? (yes/no)", AnsiUtils.Color.YELLOW));
-                        String response = in.readLine().trim().toLowerCase();
-                        if (!response.equals("yes")) {
-                            out.println(AnsiUtils.colorize("Addition cancelled.", AnsiUtils.Color.YELLOW));
-                            return;
-                        }
-                    }
-                    friends.put(name, number);
-                    saveDatabase();
-                    out.println(AnsiUtils.colorize("Friend added successfully.", AnsiUtils.Color.GREEN));
-                    logger.info("Friend added: " + name);
+                String existing;
+                try {
+                    existing = shards.putIfAbsent(name, number);
+                } catch (ShardUnavailableException e) {
+                    out.write(Responses.SHARD_UNAVAILABLE);
+                    return;
+                }
+                if (existing != null) {
+                    out.write(Responses.CONFIRM_OVERWRITE);
+                    pendingName = name;
+                    pendingNumber = number;
+                    pendingExisting = existing;
+                    state = State.CONFIRM_OVERWRITE;
+                    return;
                 }
+                reportAdded(name, out);
             } else {
-                out.println(AnsiUtils.colorize("Usage: add [name] [number]", AnsiUtils.Color.RED));
+                out.write(Responses.USAGE_ADD);
+            }
+        }
+
+        private void handleOverwriteResponse(String response, ResponseWriter out) throws IOException {
+            String name = pendingName;
+            String number = pendingNumber;
+            String existing = pendingExisting;
+            pendingName = null;
+            pendingNumber = null;
+            pendingExisting = null;
+            state = State.COMMAND;
+
+            if (!response.trim().toLowerCase().equals("yes")) {
+                out.write(Responses.ADD_CANCELLED);
+                return;
+            }
+            // Only overwrite the entry the client was asked about; if another session changed it meanwhile, cancel
+            try {
+                if (!shards.replace(name, existing, number)) {
+                    out.write(Responses.ADD_CONFLICT);
+                    return;
+                }
+            } catch (ShardUnavailableException e) {
+                out.write(Responses.SHARD_UNAVAILABLE);
+                return;
             }
+            reportAdded(name, out);
+        }
+
+        private void reportAdded(String name, ResponseWriter out) throws IOException {
+            out.write(Responses.FRIEND_ADDED);
+            logger.log(Level.INFO, "Friend added: {0}", name);
         }
 
-        private void handleSearchCommand(String[] parts, PrintWriter out) {
+        private void handleSearchCommand(String[] parts, ResponseWriter out) throws IOException {
             if (parts.length == 2) {
                 String query = parts[1].trim().toLowerCase();
-                synchronized (friends) {
-                    List<String> matches = friends.entrySet().stream()
-                        .filter(entry -> entry.getKey().toLowerCase().contains(query))
-                        .map(entry -> entry.getKey() + " - " + entry.getValue())
-                        .collect(Collectors.toList());
-                    if (matches.isEmpty()) {
-                        out.println(AnsiUtils.colorize("No matches found.", AnsiUtils.Color.YELLOW));
-                    } else {
-                        out.println(AnsiUtils.colorize("Search Results:", AnsiUtils.Color.BLUE));
-                        matches.forEach(out::println);
+                ShardRouter.FanOut matches = shards.search(query);
+                if (matches.entries.isEmpty()) {
+                    out.write(Responses.NO_MATCHES);
+                } else {
+                    out.write(Responses.SEARCH_RESULTS);
+                    for (Map.Entry<String, String> entry : matches.entries) {
+                        out.printEntry(entry.getKey(), entry.getValue());
                     }
                 }
+                if (!matches.complete) {
+                    out.write(Responses.PARTIAL_RESULTS);
+                }
             } else {
-                out.println(AnsiUtils.colorize("Usage: search [name]", AnsiUtils.Color.RED));
+                out.write(Responses.USAGE_SEARCH);
             }
         }
 
-        private void handleDeleteCommand(String[] parts, PrintWriter out) {
+        private void handleDeleteCommand(String[] parts, ResponseWriter out) throws IOException {
             if (parts.length == 2) {
                 String name = parts[1].trim();
-                synchronized (friends) {
-                    if (friends.remove(name) != null) {
-                        saveDatabase();
-                        out.println(AnsiUtils.colorize("Friend deleted.", AnsiUtils.Color.GREEN));
-                        logger.info("Friend deleted: " + name);
+                try {
+                    if (shards.remove(name)) {
+                        out.write(Responses.FRIEND_DELETED);
+                        logger.log(Level.INFO, "Friend deleted: {0}", name);
                     } else {
-                        out.println(AnsiUtils.colorize("Friend not found.", AnsiUtils.Color.RED));
+                        out.write(Responses.FRIEND_NOT_FOUND);
                     }
+                } catch (ShardUnavailableException e) {
+                    out.write(Responses.SHARD_UNAVAILABLE);
                 }
             } else {
-                out.println(AnsiUtils.colorize("Usage: delete [name]", AnsiUtils.Color.RED));
+                out.write(Responses.USAGE_DELETE);
             }
         }
 
-        private void handleListCommand(PrintWriter out) {
-            synchronized (friends) {
-                if (friends.isEmpty()) {
-                    out.println(AnsiUtils.colorize("No friends in the database.", AnsiUtils.Color.YELLOW));
-                } else {
-                    out.println(AnsiUtils.colorize("Friend List:", AnsiUtils.Color.BLUE));
-                    for (Map.Entry<String, String> entry : friends.entrySet()) {
-                        out.println(entry.getKey() + " - " + entry.getValue());
+        // list [offset] [limit]: streams a sorted snapshot, so no store state is held during socket I/O
+        private void handleListCommand(String[] parts, ResponseWriter out) throws IOException {
+            int offset = 0;
+            int limit = Integer.MAX_VALUE;
+            try {
+                if (parts.length > 1) offset = Integer.parseInt(parts[1]);
+                if (parts.length > 2) limit = Integer.parseInt(parts[2].trim());
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0 || limit <= 0) {
+                out.write(Responses.USAGE_LIST);
+                return;
+            }
+
+            ShardRouter.FanOut listing = shards.page(offset, limit);
+            if (!listing.complete) {
+                out.write(Responses.PARTIAL_RESULTS);
+            }
+            List<Map.Entry<String, String>> page = listing.entries;
+            if (listing.total == 0) {
+                out.write(Responses.NO_FRIENDS);
+                return;
+            }
+            if (page.isEmpty()) {
+                out.println(AnsiUtils.colorize("No entries at offset " + offset + " (" + listing.total + " total).", AnsiUtils.Color.YELLOW));
+                return;
+            }
+
+            if (parts.length > 1) {
+                out.println(AnsiUtils.colorize("Friend List (" + (offset + 1) + "-" + (offset + page.size()) + " of " + listing.total + "):", AnsiUtils.Color.BLUE));
+            } else {
+                out.write(Responses.FRIEND_LIST);
+            }
+            Iterator<Map.Entry<String, String>> rows = page.iterator();
+            out.writePaged(w -> {
+                for (int i = 0; i < LIST_PAGE_SIZE && rows.hasNext(); i++) {
+                    Map.Entry<String, String> entry = rows.next();
+                    w.printEntry(entry.getKey(), entry.getValue());
+                }
+                return !rows.hasNext();
+            });
+        }
+
+        private void beginImport(ResponseWriter out) throws IOException {
+            importBatch = new LinkedHashMap<>();
+            importLines = 0;
+            importErrors = 0;
+            importFirstError = null;
+            importStart = System.nanoTime();
+            state = State.IMPORT;
+            out.write(Responses.IMPORT_READY);
+        }
+
+        // One name,number row per line until a "." line. Rows are only validated and buffered here;
+        // the batch is applied in one step at the end, and not at all if any row was invalid.
+        private void handleImportLine(String line, ResponseWriter out) throws IOException {
+            if (!line.trim().equals(".")) {
+                if (importLines++ == 0) {
+                    importStart = System.nanoTime();
+                }
+                String[] fields = line.split(",");
+                String error = null;
+                if (fields.length != 2) {
+                    error = "expected name,number";
+                } else if (!NAME_PATTERN.matcher(fields[0].trim()).matches()) {
+                    error = "invalid name";
+                } else if (!PHONE_PATTERN.matcher(fields[1].trim()).matches()) {
+                    error = "invalid phone number";
+                } else if (importBatch.size() >= MAX_IMPORT_ROWS) {
+                    error = "more than " + MAX_IMPORT_ROWS + " rows";
+                }
+                if (error == null) {
+                    importBatch.put(fields[0].trim(), fields[1].trim());
+                } else if (importErrors++ == 0) {
+                    importFirstError = "line " + importLines + ": " + error;
+                }
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                finishImport(out);
+            } finally {
+                Metrics.recordCommand("import", System.nanoTime() - start);
+            }
+        }
+
+        private void finishImport(ResponseWriter out) throws IOException {
+            Map<String, String> batch = importBatch;
+            importBatch = null;
+            state = State.COMMAND;
+            if (importErrors > 0) {
+                out.println(AnsiUtils.colorize("Import rejected, nothing was changed. " + importErrors
+                    + " invalid line(s), first at " + importFirstError + ".", AnsiUtils.Color.RED));
+                return;
+            }
+            // Receiving covers the upload from the first row to the '.' line; applying is the server's own cost
+            long applyStart = System.nanoTime();
+            int added;
+            try {
+                added = shards.importAll(batch);
+            } catch (ShardUnavailableException e) {
+                out.write(Responses.IMPORT_INCOMPLETE);
+                return;
+            }
+            out.println(AnsiUtils.colorize("Imported " + batch.size() + " entries (" + added + " new, "
+                + (batch.size() - added) + " updated): received " + throughput(batch.size(), importStart, applyStart)
+                + ", applied " + throughput(batch.size(), applyStart, System.nanoTime()) + ".", AnsiUtils.Color.GREEN));
+            logger.log(Level.INFO, "Imported {0,number,#} entries from {1}", new Object[] { batch.size(), address });
+        }
+
+        // Streams every entry as name,number lines ended by ".", the same format import reads
+        private void handleExportCommand(ResponseWriter out) throws IOException {
+            long start = System.nanoTime();
+            ShardRouter.FanOut listing = shards.snapshot();
+            Iterator<Map.Entry<String, String>> rows = listing.entries.iterator();
+            out.writePaged(w -> {
+                for (int i = 0; i < LIST_PAGE_SIZE && rows.hasNext(); i++) {
+                    Map.Entry<String, String> entry = rows.next();
+                    w.printRecord(entry.getKey(), entry.getValue());
+                }
+                if (rows.hasNext()) return false;
+                w.write(Responses.END_OF_DATA);
+                if (!listing.complete) {
+                    w.write(Responses.PARTIAL_RESULTS);
+                }
+                int written = listing.entries.size();
+                w.println(AnsiUtils.colorize("Exported " + written + " entries " + throughput(written, start) + ".", AnsiUtils.Color.GREEN));
+                return true;
+            });
+        }
+
+        private static String throughput(int count, long startNanos) {
+            return throughput(count, startNanos, System.nanoTime());
+        }
+
+        private static String throughput(int count, long startNanos, long endNanos) {
+            long micros = Math.max(1, (endNanos - startNanos) / 1000);
+            return String.format("in %.1f ms (%.0f entries/s)", micros / 1000.0, count * 1e6 / micros);
+        }
+
+        private void displayHelp(ResponseWriter out) throws IOException {
+            out.write(Responses.HELP);
+        }
+    }
+
+    // Server metrics in Prometheus text format, scraped from GET /metrics on the loopback-only friends.metrics.port
+    private static class Metrics {
+        static final Map<String, LatencyHistogram> commandLatency = new LinkedHashMap<>();
+        static final LatencyHistogram storeLockWait = new LatencyHistogram();
+        static final LatencyHistogram journalFlush = new LatencyHistogram();
+        static final LatencyHistogram snapshotWrite = new LatencyHistogram();
+        static final AtomicLong rateLimitedConnections = new AtomicLong();
+        static final AtomicLong overloadedConnections = new AtomicLong();
+
+        static {
+            // Fixed set of labels so recording never has to create or lock anything
+            for (String command : new String[] { "add", "search", "delete", "list", "import", "export", "usercount", "help", "exit", "unknown" }) {
+                commandLatency.put(command, new LatencyHistogram());
+            }
+        }
+
+        static void recordCommand(String command, long nanos) {
+            LatencyHistogram histogram = commandLatency.get(command);
+            if (histogram == null) {
+                histogram = commandLatency.get("unknown");
+            }
+            histogram.record(nanos);
+        }
+
+        static String render() {
+            StringBuilder sb = new StringBuilder(8192);
+            sb.append("# HELP friends_command_duration_seconds Time spent executing each command.\n");
+            sb.append("# TYPE friends_command_duration_seconds histogram\n");
+            for (Map.Entry<String, LatencyHistogram> entry : commandLatency.entrySet()) {
+                entry.getValue().render(sb, "friends_command_duration_seconds", "command=\"" + entry.getKey() + "\"");
+            }
+            renderHistogram(sb, "friends_store_lock_wait_seconds", "Time writers waited for the friend store lock.", storeLockWait);
+            renderHistogram(sb, "friends_journal_flush_seconds", "Time spent writing (and syncing) journal batches.", journalFlush);
+            renderHistogram(sb, "friends_snapshot_write_seconds", "Time spent writing database snapshots.", snapshotWrite);
+            sb.append("# HELP friends_active_sessions Open client connections.\n");
+            sb.append("# TYPE friends_active_sessions gauge\n");
+            sb.append("friends_active_sessions ").append(sessions.size()).append('\n');
+            sb.append("# HELP friends_rejected_connections_total Connections turned away at accept time.\n");
+            sb.append("# TYPE friends_rejected_connections_total counter\n");
+            sb.append("friends_rejected_connections_total{reason=\"rate_limited\"} ").append(rateLimitedConnections.get()).append('\n');
+            sb.append("friends_rejected_connections_total{reason=\"overloaded\"} ").append(overloadedConnections.get()).append('\n');
+            sb.append("# HELP friends_authenticated_users Open connections that have authenticated.\n");
+            sb.append("# TYPE friends_authenticated_users gauge\n");
+            sb.append("friends_authenticated_users ").append(sessions.authenticatedCount()).append('\n');
+            if (replication != null) {
+                sb.append("# HELP friends_replication_followers Followers currently streaming from this leader.\n");
+                sb.append("# TYPE friends_replication_followers gauge\n");
+                sb.append("friends_replication_followers ").append(replication.followers.size()).append('\n');
+                sb.append("# HELP friends_replication_sequence Last mutation sequence number published.\n");
+                sb.append("# TYPE friends_replication_sequence counter\n");
+                sb.append("friends_replication_sequence ").append(replication.sequence).append('\n');
+            }
+            if (READ_ONLY) {
+                sb.append("# HELP friends_replication_connected Whether this follower is attached to its leader.\n");
+                sb.append("# TYPE friends_replication_connected gauge\n");
+                sb.append("friends_replication_connected ").append(ReplicationFollower.connected ? 1 : 0).append('\n');
+                sb.append("# HELP friends_replication_lag_records Mutations published by the leader but not yet applied here.\n");
+                sb.append("# TYPE friends_replication_lag_records gauge\n");
+                sb.append("friends_replication_lag_records ")
+                  .append(ReplicationFollower.leaderSequence - ReplicationFollower.appliedSequence).append('\n');
+                sb.append("# HELP friends_replication_lag_seconds Age of the latest leader message when it was applied.\n");
+                sb.append("# TYPE friends_replication_lag_seconds gauge\n");
+                sb.append("friends_replication_lag_seconds ").append(ReplicationFollower.lagMillis / 1000.0).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static void renderHistogram(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            histogram.render(sb, name, "");
+        }
+
+        static void startEndpoint(int port) {
+            ServerSocket serverSocket;
+            try {
+                serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+            } catch (IOException e) {
+                logger.severe("Metrics endpoint disabled: " + e.getMessage());
+                return;
+            }
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    try (Socket socket = serverSocket.accept()) {
+                        serveScrape(socket);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Metrics scrape failed: {0}", e.getMessage());
+                    }
+                }
+            }, "metrics-endpoint");
+            thread.setDaemon(true);
+            thread.start();
+            logger.info("Metrics available on http://localhost:" + port + "/metrics");
+        }
+
+        private static void serveScrape(Socket socket) throws IOException {
+            socket.setSoTimeout(2000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            String requestLine = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // Headers are not needed
+            }
+
+            String status = "200 OK";
+            String body;
+            if (requestLine != null && requestLine.startsWith("GET /metrics")) {
+                body = render();
+            } else {
+                status = "404 Not Found";
+                body = "Not Found\n";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            String headers = "HTTP/1.1 " + status + "\r\n" +
+                             "Content-Type: text/plain; version=0.0.4\r\n" +
+                             "Content-Length: " + bytes.length + "\r\n" +
+                             "Connection: close\r\n" +
+                             "\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(headers.getBytes(StandardCharsets.US_ASCII));
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    // Latency histogram with fixed 1-2-5 buckets from 1us to 10s, in the spirit of HdrHistogram:
+    // recording is a binary search over the bounds plus one atomic increment, with no locking.
+    private static class LatencyHistogram {
+        private static final long[] BOUNDS_NANOS = buildBounds();
+        // Plain decimal seconds ("0.000001", not 1.0E-6), so le labels stay the same across scrapes and versions
+        private static final String[] BOUND_LABELS = Arrays.stream(BOUNDS_NANOS)
+            .mapToObj(nanos -> BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString())
+            .toArray(String[]::new);
+
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        private static long[] buildBounds() {
+            List<Long> bounds = new ArrayList<>();
+            for (long decade = 1_000; decade <= 1_000_000_000L; decade *= 10) {
+                bounds.add(decade);
+                bounds.add(decade * 2);
+                bounds.add(decade * 5);
+            }
+            bounds.add(10_000_000_000L);
+            return bounds.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        void record(long nanos) {
+            int bucket = Arrays.binarySearch(BOUNDS_NANOS, nanos);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
+            }
+            counts.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+        }
+
+        // Prometheus buckets are cumulative; the last slot only feeds +Inf
+        void render(StringBuilder sb, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+                cumulative += counts.get(i);
+                sb.append(name).append("_bucket{").append(prefix).append("le=\"")
+                  .append(BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts.get(BOUNDS_NANOS.length);
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            sb.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            sb.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    // Constant responses rendered to bytes once at class load, so the common replies cost a single array copy
+    private static final class Responses {
+        static final byte[] GREETING = (AnsiUtils.clearScreen() + AnsiUtils.moveCursor(1, 1)
+            + AnsiUtils.colorize("=== Friend Database Server ===", AnsiUtils.Color.BLUE) + System.lineSeparator()
+            + "Enter Admin Password:" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        static final byte[] HELP = String.join(System.lineSeparator(),
+            AnsiUtils.colorize("Available Commands:", AnsiUtils.Color.BLUE),
+            "  add [name] [number] - Add a new friend",
+            "  search [name]      - Search for a friend",
+            "  delete [name]      - Delete a friend",
+            "  list [offset] [limit] - List friends, optionally one page",
+            "  import             - Upload name,number lines, ending with a '.' line",
+            "  export             - Download every friend as name,number lines",
+            "  usercount          - Show number of active users",
+            "  help               - Display this help message",
+            "  exit               - Disconnect from the server",
+            "").getBytes(StandardCharsets.UTF_8);
+        static final byte[] ACCESS_DENIED = AnsiUtils.render("Access Denied. Disconnecting.", AnsiUtils.Color.RED);
+        static final byte[] ACCESS_GRANTED = AnsiUtils.render("Access Granted. Welcome!", AnsiUtils.Color.GREEN);
+        static final byte[] GOODBYE = AnsiUtils.render("Goodbye!", AnsiUtils.Color.BLUE);
+        static final byte[] UNKNOWN_COMMAND = AnsiUtils.render("Unknown command. Type 'help' for a list of commands.", AnsiUtils.Color.RED);
+        static final byte[] INVALID_NAME = AnsiUtils.render("Invalid name. Use only letters and spaces (1-30 characters).", AnsiUtils.Color.RED);
+        static final byte[] INVALID_PHONE = AnsiUtils.render("Invalid phone number. Use 7-15 digits only.", AnsiUtils.Color.RED);
+        static final byte[] CONFIRM_OVERWRITE = AnsiUtils.render("This name already exists. Overwrite? (yes/no)", AnsiUtils.Color.YELLOW);
+        static final byte[] USAGE_ADD = AnsiUtils.render("Usage: add [name] [number]", AnsiUtils.Color.RED);
+        static final byte[] ADD_CANCELLED = AnsiUtils.render("Addition cancelled.", AnsiUtils.Color.YELLOW);
+        static final byte[] ADD_CONFLICT = AnsiUtils.render("Entry changed while waiting for confirmation. Addition cancelled.", AnsiUtils.Color.YELLOW);
+        static final byte[] FRIEND_ADDED = AnsiUtils.render("Friend added successfully.", AnsiUtils.Color.GREEN);
+        static final byte[] NO_MATCHES = AnsiUtils.render("No matches found.", AnsiUtils.Color.YELLOW);
+        static final byte[] SEARCH_RESULTS = AnsiUtils.render("Search Results:", AnsiUtils.Color.BLUE);
+        static final byte[] USAGE_SEARCH = AnsiUtils.render("Usage: search [name]", AnsiUtils.Color.RED);
+        static final byte[] FRIEND_DELETED = AnsiUtils.render("Friend deleted.", AnsiUtils.Color.GREEN);
+        static final byte[] FRIEND_NOT_FOUND = AnsiUtils.render("Friend not found.", AnsiUtils.Color.RED);
+        static final byte[] USAGE_DELETE = AnsiUtils.render("Usage: delete [name]", AnsiUtils.Color.RED);
+        static final byte[] USAGE_LIST = AnsiUtils.render("Usage: list [offset] [limit]", AnsiUtils.Color.RED);
+        static final byte[] IMPORT_READY = AnsiUtils.render("Send name,number lines. End the import with a line containing only '.'.", AnsiUtils.Color.BLUE);
+        static final byte[] IMPORT_INCOMPLETE = AnsiUtils.render("Some shards were unavailable; their part of the import was not applied.", AnsiUtils.Color.RED);
+        static final byte[] END_OF_DATA = ("." + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        static final byte[] ACTIVE_USERS = "Active users: ".getBytes(StandardCharsets.UTF_8);
+        static final byte[] NO_FRIENDS = AnsiUtils.render("No friends in the database.", AnsiUtils.Color.YELLOW);
+        static final byte[] FRIEND_LIST = AnsiUtils.render("Friend List:", AnsiUtils.Color.BLUE);
+        static final byte[] READ_ONLY = AnsiUtils.render("This server is a read-only replica. Send changes to the leader.", AnsiUtils.Color.RED);
+        static final byte[] SHARD_UNAVAILABLE = AnsiUtils.render("The server holding this name is unavailable. Try again later.", AnsiUtils.Color.RED);
+        static final byte[] PARTIAL_RESULTS = AnsiUtils.render("Some shards did not respond; results may be incomplete.", AnsiUtils.Color.YELLOW);
+        static final byte[] RATE_LIMITED = AnsiUtils.render("Too many connections from your address. Try again later.", AnsiUtils.Color.RED);
+        static final byte[] SERVER_BUSY = AnsiUtils.render("Server is busy. Try again later.", AnsiUtils.Color.RED);
+        static final byte[] LINE_TOO_LONG = AnsiUtils.render("Line too long. Disconnecting.", AnsiUtils.Color.RED);
+    }
+
+    // Byte-level response sink shared by both front ends. Constant replies go out as pre-rendered
+    // arrays; only dynamic lines such as search and list rows are encoded per call.
+    private static class ResponseWriter {
+        // A long reply produced LIST_PAGE_SIZE rows at a time; writePage returns true after the last page
+        interface Paged {
+            boolean writePage(ResponseWriter out) throws IOException;
+        }
+
+        private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        private static final byte[] ENTRY_SEPARATOR = " - ".getBytes(StandardCharsets.UTF_8);
+
+        private final OutputStream out;
+        private final byte[] digits = new byte[20];
+
+        ResponseWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        void println(String line) throws IOException {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write(NEWLINE);
+        }
+
+        void printEntry(String name, String number) throws IOException {
+            out.write(name.getBytes(StandardCharsets.UTF_8));
+            out.write(ENTRY_SEPARATOR);
+            out.write(number.getBytes(StandardCharsets.UTF_8));
+            out.write(NEWLINE);
+        }
+
+        // Writes label followed by a non-negative count, without going through a String
+        void printCount(byte[] label, long value) throws IOException {
+            int pos = digits.length;
+            do {
+                digits[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            out.write(label);
+            out.write(digits, pos, digits.length - pos);
+            out.write(NEWLINE);
+        }
+
+        void printRecord(String name, String number) throws IOException {
+            out.write(name.getBytes(StandardCharsets.UTF_8));
+            out.write(',');
+            out.write(number.getBytes(StandardCharsets.UTF_8));
+            out.write(NEWLINE);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        // Blocking front ends write every page now, flushing each one to the socket; the NIO front end
+        // overrides this to write the next page only once the previous one has left its queue
+        void writePaged(Paged reply) throws IOException {
+            while (!reply.writePage(this)) {
+                flush();
+            }
+        }
+    }
+
+    // Single-threaded Selector event loop. Each connection buffers partial input until a full
+    // line arrives, runs it through its CommandSession and queues the response for writing.
+    // A list or export reply is queued one page at a time: the next page is rendered only once the
+    // previous one has been written to the socket, and the rest of the batch waits until the last one.
+    // With shards, a command can wait seconds on another node, so each read's lines run as one batch
+    // on a worker instead; the connection stops reading until the batch is done, which keeps its
+    // commands in order, and the selector picks the response up from the completed queue.
+    private static class NioServer {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private final ExecutorService workers = shards.isDistributed() ? Executors.newFixedThreadPool(NIO_WORKERS, r -> {
+            Thread t = new Thread(r, "nio-command");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+        private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<>();
+
+        NioServer(int port) throws IOException {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        void serve() throws IOException {
+            while (true) {
+                selector.select();
+                Connection done;
+                while ((done = completed.poll()) != null) {
+                    done.finishBatch();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "Client error: {0}", e.getMessage());
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
                     }
                 }
             }
         }
 
-        private void displayHelp(PrintWriter out) {
-            out.println(AnsiUtils.colorize("Available Commands:", AnsiUtils.Color.BLUE));
-            out.println("  add [name] [number] - Add a new friend");
-            out.println("  search [name]      - Search for a friend");
-            out.println("  delete [name]      - Delete a friend");
-            out.println("  list               - List all friends");
-            out.println("  usercount          - Show number of active users");
-            out.println("  help               - Display this help message");
-            out.println("  exit               - Disconnect from the server");
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                InetAddress address = channel.socket().getInetAddress();
+                byte[] rejection = admissionCheck(address, false);
+                if (rejection != null) {
+                    // Fits in the socket send buffer, so a single non-blocking write is enough
+                    channel.write(ByteBuffer.wrap(rejection));
+                    channel.close();
+                    continue;
+                }
+                logger.log(Level.INFO, "New client connected: {0}", address);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                SocketChannel accepted = channel;
+                // The reaper runs on its own thread; wake the selector so the closed key is dropped promptly
+                SessionInfo info = sessions.open(address, () -> {
+                    accepted.close();
+                    selector.wakeup();
+                });
+                Connection connection = new Connection(key, channel, info);
+                key.attach(connection);
+                connection.start();
+            }
+        }
+
+        private class Connection {
+            private final SelectionKey key;
+            private final SocketChannel channel;
+            private final SessionInfo info;
+            private final CommandSession session;
+            private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+            private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+            private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+            private final ArrayDeque<String> pendingLines = new ArrayDeque<>(); // batch lines not yet run
+            private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            private final ResponseWriter out = new ResponseWriter(response) {
+                @Override
+                void writePaged(Paged reply) {
+                    paged = reply;
+                }
+            };
+            private ResponseWriter.Paged paged; // reply still being paged out; no command runs meanwhile
+            private boolean closeAfterWrite;
+            private boolean lineTooLong;
+            private boolean busy; // a worker is running this connection's batch; selector thread only
+
+            Connection(SelectionKey key, SocketChannel channel, SessionInfo info) {
+                this.key = key;
+                this.channel = channel;
+                this.info = info;
+                this.session = new CommandSession(info);
+            }
+
+            void start() throws IOException {
+                session.greet(out);
+                flushResponse();
+            }
+
+            void read() throws IOException {
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                info.bytesIn.addAndGet(n);
+                readBuffer.flip();
+                boolean gotLine = false;
+                while (readBuffer.hasRemaining() && !lineTooLong) {
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        String line = lineBuffer.toString("UTF-8");
+                        lineBuffer.reset();
+                        if (line.endsWith("\r")) {
+                            line = line.substring(0, line.length() - 1);
+                        }
+                        pendingLines.add(line);
+                        gotLine = true;
+                    } else if (lineBuffer.size() >= MAX_LINE_BYTES) {
+                        lineTooLong = true;
+                    } else {
+                        lineBuffer.write(b);
+                    }
+                }
+                if (!gotLine && !lineTooLong) return;
+                if (workers == null) {
+                    runBatch();
+                    flushResponse();
+                } else {
+                    startBatch();
+                }
+            }
+
+            private void startBatch() {
+                busy = true;
+                key.interestOps(0);
+                workers.execute(() -> {
+                    try {
+                        runBatch();
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "Client error: {0}", e.getMessage());
+                        closeAfterWrite = true;
+                    }
+                    completed.add(this);
+                    selector.wakeup();
+                });
+            }
+
+            // Every complete line in one read runs as one batch: persist it once, then respond.
+            // A paged reply suspends the batch; the remaining lines run once its last page is queued.
+            private void runBatch() throws IOException {
+                String line;
+                while (paged == null && (line = pendingLines.poll()) != null) {
+                    if (!session.handleLine(line, out)) {
+                        closeAfterWrite = true;
+                        pendingLines.clear();
+                        break;
+                    }
+                }
+                if (paged == null && lineTooLong && !closeAfterWrite) {
+                    out.write(Responses.LINE_TOO_LONG);
+                    closeAfterWrite = true;
+                }
+                journal.flush();
+            }
+
+            // Selector thread, once a worker has run this connection's batch
+            void finishBatch() {
+                busy = false;
+                if (!key.isValid()) return; // closed by the idle reaper meanwhile
+                try {
+                    flushResponse();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Client error: {0}", e.getMessage());
+                    close();
+                }
+            }
+
+            void write() throws IOException {
+                while (true) {
+                    while (!pendingWrites.isEmpty()) {
+                        ByteBuffer buffer = pendingWrites.peek();
+                        info.bytesOut.addAndGet(channel.write(buffer));
+                        if (buffer.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        pendingWrites.poll();
+                    }
+                    if (paged == null || busy) break;
+
+                    // The socket took everything queued so far: render the next page
+                    if (paged.writePage(out)) {
+                        paged = null;
+                        if (!closeAfterWrite && (!pendingLines.isEmpty() || lineTooLong)) {
+                            if (workers != null) {
+                                queueResponse();
+                                startBatch();
+                                return;
+                            }
+                            runBatch();
+                        }
+                    }
+                    queueResponse();
+                }
+                if (closeAfterWrite && !busy) {
+                    close();
+                } else {
+                    key.interestOps(busy ? 0 : SelectionKey.OP_READ);
+                }
+            }
+
+            // Moves whatever the session printed into the write queue and tries to send it right away
+            private void flushResponse() throws IOException {
+                queueResponse();
+                write();
+            }
+
+            private void queueResponse() {
+                if (response.size() > 0) {
+                    pendingWrites.add(ByteBuffer.wrap(response.toByteArray()));
+                    response.reset();
+                }
+            }
+
+            void close() {
+                session.close();
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
         }
     }
 
@@ -289,5 +2936,10 @@ public class FriendDatabaseServer {
         public static String colorize(String text, Color color) {
             return color + text + Color.RESET;
         }
+
+        // Colored line plus terminator, encoded once for responses that never change
+        public static byte[] render(String text, Color color) {
+            return (colorize(text, color) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Concurrent-session load test for FriendDatabaseServer. For each mode it starts the server in a
+// scratch directory, then opens sessions in steps and keeps every one of them logged in. After each
+// step every open session runs "usercount"; the step reports how many sessions the server admitted,
+// how many answered, and the command latency across them.
+//
+//   javac FriendDatabaseServer.java LoadTest.java
+//   java LoadTest [maxSessions=1000] [step=250] [modes=pool,virtual,nio]
+//
+// All sessions come from one address, so the servers run with the connection rate limit lifted.
+public class LoadTest {
+    private static final String PASSWORD = "admin123";
+    private static final int PORT = Integer.getInteger("loadtest.port", 18180);
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("loadtest.timeout", 5000);
+    private static final int CLIENT_THREADS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int maxSessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int step = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+        String[] modes = (args.length > 2 ? args[2] : "pool,virtual,nio").split(",");
+
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        System.out.printf("%-8s %8s %9s %9s %9s %9s%n", "mode", "opened", "admitted", "answered", "p50 ms", "p99 ms");
+        for (String mode : modes) {
+            if (mode.equals("virtual") && !virtualThreadsAvailable()) {
+                System.out.printf("%-8s skipped: no virtual threads on Java %s; the server would run its thread pool%n",
+                    mode, System.getProperty("java.specification.version"));
+                continue;
+            }
+            Path dir = Files.createTempDirectory("loadtest-" + mode);
+            Process server = startServer(mode, dir);
+            try {
+                run(mode, maxSessions, step, clients);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+        clients.shutdownNow();
+    }
+
+    // The server is started on this same JVM, and without virtual threads its "virtual" mode quietly
+    // falls back to the bounded pool; a row measured that way would just repeat the pool's numbers
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Process startServer(String mode, Path dir) throws IOException, InterruptedException {
+        String classPath = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+            .map(entry -> new File(entry).getAbsolutePath())
+            .collect(Collectors.joining(File.pathSeparator));
+        Process server = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath,
+                "-Dfriends.mode=" + mode,
+                "-Dfriends.port=" + PORT,
+                "-Dfriends.metrics.port=-1",
+                "-Dfriends.rate.perSecond=1000000",
+                "-Dfriends.rate.burst=1000000",
+                "FriendDatabaseServer")
+            .directory(dir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(dir.resolve("stdout.txt").toFile())
+            .start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("localhost", PORT).close();
+                return server;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+                    server.destroy();
+                    throw new IOException("Server in " + mode + " mode did not start; see " + dir.resolve("stdout.txt"));
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void run(String mode, int maxSessions, int step, ExecutorService clients) throws Exception {
+        List<Session> open = new ArrayList<>();
+        int opened = 0;
+        while (opened < maxSessions) {
+            int batch = Math.min(step, maxSessions - opened);
+            List<Future<Session>> attempts = new ArrayList<>();
+            for (int i = 0; i < batch; i++) {
+                attempts.add(clients.submit(Session::open));
+            }
+            for (Future<Session> attempt : attempts) {
+                Session session = attempt.get();
+                if (session != null) open.add(session);
+            }
+            opened += batch;
+            int admitted = open.size();
+
+            List<Future<Long>> commands = new ArrayList<>();
+            for (Session session : open) {
+                commands.add(clients.submit(session::timeCommand));
+            }
+            List<Long> latencies = new ArrayList<>();
+            Iterator<Session> sessions = open.iterator();
+            for (Future<Long> command : commands) {
+                Session session = sessions.next();
+                long nanos = command.get();
+                if (nanos < 0) {
+                    session.close();
+                    sessions.remove();
+                } else {
+                    latencies.add(nanos);
+                }
+            }
+            Collections.sort(latencies);
+            System.out.printf("%-8s %8d %9d %9d %9s %9s%n", mode, opened, admitted, latencies.size(),
+                percentile(latencies, 0.50), percentile(latencies, 0.99));
+        }
+        for (Session session : open) {
+            session.close();
+        }
+    }
+
+    private static String percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) return "-";
+        long nanos = sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(fraction * sorted.size()) - 1));
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    // One logged-in client connection. A session the server queued, refused or never greeted within
+    // the timeout counts as not admitted.
+    private static class Session implements Closeable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        static Session open() {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("localhost", PORT), TIMEOUT_MILLIS);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                Session session = new Session(socket);
+                session.send(PASSWORD);
+                if (session.readUntil("Access Granted")) return session;
+            } catch (IOException e) {
+                // not admitted
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+
+        // Nanoseconds from sending "usercount" to its answer, or -1 if none came
+        long timeCommand() {
+            try {
+                long start = System.nanoTime();
+                send("usercount");
+                return readUntil("Active users: ") ? System.nanoTime() - start : -1;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        private void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        // Reads until the marker and the rest of its line have arrived; false at end of stream
+        private boolean readUntil(String marker) throws IOException {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            while (true) {
+                String text = received.toString("UTF-8");
+                int at = text.indexOf(marker);
+                if (at >= 0 && text.indexOf('\n', at) >= 0) return true;
+                int n = in.read(chunk);
+                if (n < 0) return false;
+                received.write(chunk, 0, n);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
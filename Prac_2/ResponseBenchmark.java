@@ -0,0 +1,135 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+// Compares the two ways a reply can reach the socket stream, for a constant reply, the help text
+// and one search result row:
+//   string - AnsiUtils.colorize and concatenation per reply, printed through an autoflushing
+//            PrintWriter (the path before the Responses cache)
+//   bytes  - the pre-rendered Responses arrays written through ResponseWriter, as the server does now
+// Both write into a BufferedOutputStream over a sink that discards the bytes, so only the cost of
+// building and encoding the reply is measured. Reports time and bytes allocated per reply.
+//
+//   javac FriendDatabaseServer.java ResponseBenchmark.java && java ResponseBenchmark
+//
+// The project builds with plain javac and has no JMH, so warm-up is done by hand: a few untimed
+// rounds first, then the fastest of several timed rounds is reported.
+public class ResponseBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final int OPS_PER_ROUND = 200_000;
+
+    private static final byte[] FRIEND_NOT_FOUND;
+    private static final byte[] HELP;
+    private static final MethodHandle NEW_WRITER;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle PRINT_ENTRY;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> responses = Class.forName("FriendDatabaseServer$Responses");
+            MethodHandles.Lookup responsesLookup = MethodHandles.privateLookupIn(responses, lookup);
+            FRIEND_NOT_FOUND = (byte[]) responsesLookup.findStaticGetter(responses, "FRIEND_NOT_FOUND", byte[].class).invoke();
+            HELP = (byte[]) responsesLookup.findStaticGetter(responses, "HELP", byte[].class).invoke();
+
+            Class<?> writer = Class.forName("FriendDatabaseServer$ResponseWriter");
+            MethodHandles.Lookup writerLookup = MethodHandles.privateLookupIn(writer, lookup);
+            NEW_WRITER = writerLookup.findConstructor(writer, MethodType.methodType(void.class, OutputStream.class))
+                .asType(MethodType.methodType(Object.class, OutputStream.class));
+            WRITE = writerLookup.findVirtual(writer, "write", MethodType.methodType(void.class, byte[].class))
+                .asType(MethodType.methodType(void.class, Object.class, byte[].class));
+            PRINT_ENTRY = writerLookup.findVirtual(writer, "printEntry", MethodType.methodType(void.class, String.class, String.class))
+                .asType(MethodType.methodType(void.class, Object.class, String.class, String.class));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    interface Op {
+        void run() throws Throwable;
+    }
+
+    // Discards everything, but counts it so the writes cannot be optimized away
+    private static class Sink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Sink sink = new Sink();
+        PrintWriter printer = new PrintWriter(new BufferedOutputStream(sink, 8192), true);
+        BufferedOutputStream buffered = new BufferedOutputStream(sink, 8192);
+        Object writer = (Object) NEW_WRITER.invokeExact((OutputStream) buffered);
+        String name = "Alice";
+        String number = "0821234567";
+
+        System.out.printf("%-18s %-7s %10s %10s%n", "reply", "path", "ns/op", "B/op");
+        report("not found", "string", () ->
+            printer.println(FriendDatabaseServer.AnsiUtils.colorize("Friend not found.", FriendDatabaseServer.AnsiUtils.Color.RED)));
+        report("not found", "bytes", () -> {
+            WRITE.invokeExact(writer, FRIEND_NOT_FOUND);
+            buffered.flush();
+        });
+        report("help", "string", () -> {
+            printer.println(FriendDatabaseServer.AnsiUtils.colorize("Available Commands:", FriendDatabaseServer.AnsiUtils.Color.BLUE));
+            printer.println("  add [name] [number] - Add a new friend");
+            printer.println("  search [name]      - Search for a friend");
+            printer.println("  delete [name]      - Delete a friend");
+            printer.println("  list [offset] [limit] - List friends, optionally one page");
+            printer.println("  import             - Upload name,number lines, ending with a '.' line");
+            printer.println("  export             - Download every friend as name,number lines");
+            printer.println("  usercount          - Show number of active users");
+            printer.println("  help               - Display this help message");
+            printer.println("  exit               - Disconnect from the server");
+        });
+        report("help", "bytes", () -> {
+            WRITE.invokeExact(writer, HELP);
+            buffered.flush();
+        });
+        report("search row", "string", () -> printer.println(name + " - " + number));
+        report("search row", "bytes", () -> {
+            PRINT_ENTRY.invokeExact(writer, name, number);
+            buffered.flush();
+        });
+        if (sink.bytes == 0) throw new AssertionError("nothing written");
+    }
+
+    private static void report(String reply, String path, Op op) throws Throwable {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(op);
+        }
+        double bestNanos = Double.MAX_VALUE;
+        double bytes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            run(op);
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            if (elapsed < bestNanos * OPS_PER_ROUND) {
+                bestNanos = (double) elapsed / OPS_PER_ROUND;
+                bytes = (double) allocated / OPS_PER_ROUND;
+            }
+        }
+        System.out.printf("%-18s %-7s %10.1f %10.1f%n", reply, path, bestNanos, bytes);
+    }
+
+    private static void run(Op op) throws Throwable {
+        for (int i = 0; i < OPS_PER_ROUND; i++) {
+            op.run();
+        }
+    }
+}
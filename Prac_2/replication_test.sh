@@ -0,0 +1,51 @@
+#!/usr/bin/env bash
+# Two-JVM replication check: starts a leader and a follower in scratch directories, adds a friend
+# on the leader and looks it up on the follower, then freezes the leader (SIGSTOP, no FIN sent)
+# and checks that the follower notices within its read timeout and drops the stream.
+set -u
+
+PASSWORD=admin123
+LEADER_PORT=18080
+FOLLOWER_PORT=18081
+REPLICATION_PORT=18090
+SRC=$(cd "$(dirname "$0")" && pwd)
+WORK=$(mktemp -d)
+trap 'kill -CONT $LEADER 2>/dev/null; kill $LEADER $FOLLOWER 2>/dev/null; rm -rf "$WORK"' EXIT
+
+javac -d "$WORK/classes" "$SRC/FriendDatabaseServer.java" || exit 1
+mkdir "$WORK/leader" "$WORK/follower"
+
+(cd "$WORK/leader" && exec java -cp "$WORK/classes" -Dfriends.port=$LEADER_PORT -Dfriends.metrics.port=-1 \
+    -Dfriends.replication.port=$REPLICATION_PORT FriendDatabaseServer > stdout.txt 2>&1) &
+LEADER=$!
+sleep 1
+(cd "$WORK/follower" && exec java -cp "$WORK/classes" -Dfriends.port=$FOLLOWER_PORT -Dfriends.metrics.port=-1 \
+    -Dfriends.replicaOf=127.0.0.1:$REPLICATION_PORT FriendDatabaseServer > stdout.txt 2>&1) &
+FOLLOWER=$!
+sleep 2
+
+# Logs in, runs one command and prints everything the server sends back
+run() {
+    exec 3<>/dev/tcp/127.0.0.1/$1
+    printf '%s\n' "$PASSWORD" "$2" exit >&3
+    timeout 2 cat <&3
+    exec 3<&-
+}
+
+run $LEADER_PORT "add Replica 5550001234" > /dev/null
+sleep 1
+if run $FOLLOWER_PORT "search Replica" | grep -q 5550001234; then
+    echo "PASS: follower serves the entry added on the leader"
+else
+    echo "FAIL: entry did not reach the follower"
+    exit 1
+fi
+
+kill -STOP $LEADER
+sleep 5
+if grep -q "Replication stream from .* lost" "$WORK/follower/server.log"; then
+    echo "PASS: follower dropped the silent leader's stream"
+else
+    echo "FAIL: follower is still waiting on the silent leader"
+    exit 1
+fi
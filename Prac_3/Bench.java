@@ -0,0 +1,45 @@
+import java.lang.management.ManagementFactory;
+
+// Timing loop for the calculator benchmarks (PageBenchmark, CookieBenchmark). There is no JMH in
+// this build, so each case gets WARMUP_ROUNDS untimed rounds for the JIT to settle, then ROUNDS
+// timed ones; the fastest timed round is kept along with the bytes the thread allocated during it.
+final class Bench {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+
+    interface Op {
+        void run() throws Throwable;
+    }
+
+    private Bench() {
+    }
+
+    // Returns {nanoseconds, bytes allocated}, both per op
+    static double[] measure(int opsPerRound, Op op) throws Throwable {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(opsPerRound, op);
+        }
+        double bestNanos = Double.MAX_VALUE;
+        double bytes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            run(opsPerRound, op);
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            if (elapsed < bestNanos * opsPerRound) {
+                bestNanos = (double) elapsed / opsPerRound;
+                bytes = (double) allocated / opsPerRound;
+            }
+        }
+        return new double[] {bestNanos, bytes};
+    }
+
+    private static void run(int ops, Op op) throws Throwable {
+        for (int i = 0; i < ops; i++) {
+            op.run();
+        }
+    }
+}
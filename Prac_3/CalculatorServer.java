@@ -1,328 +1,1687 @@
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public class CalculatorServer {
-    private static final int PORT = 8080;
-    private static String currentDisplay = "0";
-    private static String firstOperand = "";
-    private static String secondOperand = "";
-    private static String operator = "";
-    private static boolean newOperand = true;
-    private static boolean calculationPerformed = false;
-    private static List<String> history = new ArrayList<>(); // Store calculation history
+    private static final int PORT = Integer.getInteger("calculator.port", 8080);
+    private static final String STATE_COOKIE = "calculatorState";
+    private static final String STATE_SECRET = System.getProperty("calculator.secret"); // shared by every instance behind a load balancer
+    private static final int STATE_MAX_AGE_SECONDS = Integer.getInteger("calculator.stateMaxAge", 3600); // older state cookies start over
+    private static final int MAX_DISPLAY_DIGITS = 32; // keeps the state cookie well inside browser and header limits
+    private static final int KEEP_ALIVE_SECONDS = Integer.getInteger("calculator.keepAliveTimeout", 5); // idle time before a connection is closed
+    private static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("calculator.maxRequests", 100);
+    private static final int MAX_HEADER_BYTES = 8192; // request line and headers together
+    private static final int MAX_HEADERS = 100;
+    private static final String SERVER_MODE = System.getProperty("calculator.mode", "pool"); // "pool" or "virtual"
+    private static final int POOL_THREADS = Integer.getInteger("calculator.threads", 16);
+    private static final int MAX_QUEUED_CONNECTIONS = Integer.getInteger("calculator.maxQueued", 100); // pool mode: waiting for a thread
+    private static final ExecutorService threadPool = createThreadPool();
+    private static final String KEEP_ALIVE_HEADERS = "Connection: keep-alive\r\nKeep-Alive: timeout=" + KEEP_ALIVE_SECONDS
+        + ", max=" + MAX_REQUESTS_PER_CONNECTION + "\r\n";
+    private static final String CLOSE_HEADERS = "Connection: close\r\n";
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024; // holds a whole page, so each flush is one socket write
+    private static final boolean GZIP_ENABLED = Boolean.parseBoolean(System.getProperty("calculator.gzip", "true"));
+    private static final String CACHE_HEADERS = "Cache-Control: private, no-cache\r\n" // always revalidate, answered by a 304 when unchanged
+        + (GZIP_ENABLED ? "Vary: Accept-Encoding\r\n" : "");
+
+    // The calculator page is constant apart from the display value, so the HTML before and after it
+    // is encoded once and each response only splices the display in between.
+    private static final byte[] PAGE_PREFIX = String.join("\r\n",
+        "<!DOCTYPE html>",
+        "<html>",
+        "<head>",
+        "<title>Simple Calculator</title>",
+        "<style>",
+        "body { font-family: Arial, sans-serif; display: flex; justify-content: center; align-items: center; height: 100vh; margin: 0; background-color: #f4f4f4; }",
+        ".calculator { width: 300px; background-color: #fff; border: 1px solid #ccc; border-radius: 10px; box-shadow: 0 4px 8px rgba(0, 0, 0, 0.1); padding: 20px; }",
+        ".display { width: 100%; height: 60px; background-color: #e0e0e0; border: 1px solid #ccc; border-radius: 5px; margin-bottom: 20px; text-align: right; font-size: 28px; padding: 10px; box-sizing: border-box; }",
+        ".buttons { display: grid; grid-template-columns: repeat(4, 1fr); gap: 10px; }",
+        ".button { background-color: #f0f0f0; border: 1px solid #ccc; border-radius: 5px; padding: 20px; text-align: center; cursor: pointer; font-size: 18px; transition: background-color 0.2s; }",
+        ".button:hover { background-color: #d0d0d0; }",
+        ".clear { grid-column: span 2; background-color: #ff6666; color: white; }",
+        ".equals { background-color: #66cc66; color: white; }",
+        ".operator { background-color: #ffcc66; color: white; }",
+        "</style>",
+        "</head>",
+        "<body>",
+        "<div class=\"calculator\">",
+        "<div class=\"display\">").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PAGE_SUFFIX = String.join("\r\n",
+        "</div>",
+        "<div class=\"buttons\">",
+        "<a href=\"/C\" class=\"button clear\">Clear</a>",
+        "<a href=\"/div\" class=\"button operator\">/</a>",
+        "<a href=\"/*\" class=\"button operator\">*</a>",
+        "<a href=\"/7\" class=\"button\">7</a>",
+        "<a href=\"/8\" class=\"button\">8</a>",
+        "<a href=\"/9\" class=\"button\">9</a>",
+        "<a href=\"/-\" class=\"button operator\">-</a>",
+        "<a href=\"/4\" class=\"button\">4</a>",
+        "<a href=\"/5\" class=\"button\">5</a>",
+        "<a href=\"/6\" class=\"button\">6</a>",
+        "<a href=\"/+\" class=\"button operator\">+</a>",
+        "<a href=\"/1\" class=\"button\">1</a>",
+        "<a href=\"/2\" class=\"button\">2</a>",
+        "<a href=\"/3\" class=\"button\">3</a>",
+        "<a href=\"/=\" class=\"button equals\">=</a>",
+        "<a href=\"/history\" class=\"button\">History</a>",
+        "<a href=\"/0\" class=\"button\" style=\"grid-column: span 3;\">0</a>",
+        "</div>",
+        "</div>",
+        "</body>",
+        "</html>",
+        "").getBytes(StandardCharsets.UTF_8);
+
+    private static final StateCookie stateCookie = StateCookie.create();
+    private static final int HISTORY_PER_SESSION = Integer.getInteger("calculator.history.perSession", 100); // kept in memory
+    private static final int HISTORY_MAX_ENTRIES = Integer.getInteger("calculator.history.maxEntries", 100000); // across all sessions
+    private static final String HISTORY_FILE = System.getProperty("calculator.history.file"); // optional append-only log
+    private static final int HISTORY_PAGE_SIZE = 20;
+    private static final int MAX_HISTORY_PAGE_SIZE = 100;
+    private static final HistoryStore history = HistoryStore.create();
+    private static final int EVAL_PRECISION = Integer.getInteger("calculator.eval.precision", 34); // significant digits in decimal mode
+    private static final int EVAL_CACHE_SIZE = Integer.getInteger("calculator.eval.cacheSize", 1024); // compiled expressions kept
+    private static final int MAX_EXPRESSION_LENGTH = 1000;
+    private static final int MAX_BATCH_EXPRESSIONS = 100;
+    private static final ExpressionEngine expressions = new ExpressionEngine(EVAL_CACHE_SIZE);
+
+    private static final byte[] HISTORY_PREFIX = String.join("\r\n",
+        "<!DOCTYPE html>",
+        "<html>",
+        "<head>",
+        "<title>Calculation History</title>",
+        "<style>",
+        "body { font-family: Arial, sans-serif; display: flex; justify-content: center; align-items: center; height: 100vh; margin: 0; background-color: #f4f4f4; }",
+        ".history { width: 300px; background-color: #fff; border: 1px solid #ccc; border-radius: 10px; box-shadow: 0 4px 8px rgba(0, 0, 0, 0.1); padding: 20px; }",
+        "</style>",
+        "</head>",
+        "<body>",
+        "<div class=\"history\">",
+        "<h2>Calculation History</h2>",
+        "").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HISTORY_SUFFIX = String.join("\r\n",
+        "<a href=\"/\" class=\"button\">Back to Calculator</a>",
+        "</div>",
+        "</body>",
+        "</html>",
+        "").getBytes(StandardCharsets.UTF_8);
+    private static final CachedPage CALCULATOR_PAGE = new CachedPage(PAGE_PREFIX, PAGE_SUFFIX);
+    private static final CachedPage HISTORY_PAGE = new CachedPage(HISTORY_PREFIX, HISTORY_SUFFIX);
 
     public static void main(String[] args) {
         try {
             System.out.println("Starting Calculator Server...");
-            System.out.println("HTTP Server is running on port " + PORT);
+            System.out.println("HTTP Server is running on port " + PORT + " (" + SERVER_MODE + ")");
 
             try (ServerSocket serverSocket = new ServerSocket(PORT)) {
                 while (true) {
                     Socket clientSocket = serverSocket.accept();
-                    new Thread(() -> handleClient(clientSocket)).start();
+                    try {
+                        threadPool.execute(() -> handleClient(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        rejectConnection(clientSocket);
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("HTTP Server error: " + e.getMessage());
+            } finally {
+                threadPool.shutdown();
             }
         } catch (Exception e) {
             System.err.println("Server initialization error: " + e.getMessage());
         }
     }
 
+    private static ExecutorService createThreadPool() {
+        if (SERVER_MODE.equals("virtual")) {
+            // Looked up reflectively so the server still compiles and runs on JDKs without virtual threads
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JVM; using the fixed thread pool.");
+            }
+        }
+        // Bounded queue: once MAX_QUEUED_CONNECTIONS connections are waiting for a thread, new ones get a 503
+        return new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_CONNECTIONS));
+    }
+
+    // True when connections are waiting for a pool thread. Keep-alive connections then close after
+    // their current request instead of holding a thread through their idle timeout.
+    private static boolean poolSaturated() {
+        return threadPool instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) threadPool).getQueue().isEmpty();
+    }
+
+    private static void rejectConnection(Socket socket) {
+        try (Socket s = socket; OutputStream out = s.getOutputStream()) {
+            byte[] body = "<html><body><h1>503 Service Unavailable</h1></body></html>".getBytes("UTF-8");
+            String headers = "HTTP/1.1 503 Service Unavailable\r\n" +
+                             "Content-Type: text/html\r\n" +
+                             "Content-Length: " + body.length + "\r\n" +
+                             "Retry-After: 1\r\n" +
+                             "Connection: close\r\n" +
+                             "\r\n";
+            out.write(headers.getBytes("UTF-8"));
+            out.write(body);
+        } catch (IOException ignored) {
+            // The client is being turned away anyway
+        }
+    }
+
+    // Serves requests from one connection until the client asks to close, the connection sits idle
+    // for KEEP_ALIVE_SECONDS or MAX_REQUESTS_PER_CONNECTION have been answered. Pipelined requests
+    // are answered in order and flushed together once no complete request is left buffered.
     private static void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             OutputStream out = clientSocket.getOutputStream()) {
+        try (Socket socket = clientSocket;
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), RESPONSE_BUFFER_SIZE)) {
+            socket.setSoTimeout(KEEP_ALIVE_SECONDS * 1000);
+            RequestParser request = new RequestParser(socket.getInputStream());
+
+            for (int served = 1; ; served++) {
+                if (!request.next()) return;
+                if (request.transferEncoding) {
+                    // Only Content-Length framing is supported; guessing at a chunked body would desync the connection
+                    sendErrorResponse(out, 501, "Not Implemented", false);
+                    return;
+                }
+                if (request.malformed || !request.skipBody()) {
+                    sendErrorResponse(out, 400, "Bad Request", false);
+                    return;
+                }
+                boolean keepAlive = served < MAX_REQUESTS_PER_CONNECTION && request.wantsKeepAlive() && !poolSaturated();
+
+                handleRequest(request, out, keepAlive);
+                if (!request.hasBufferedRequest()) {
+                    out.flush();
+                }
+                if (!keepAlive) return;
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection; closing it is all there is to do
+        } catch (IOException e) {
+            System.err.println("Error handling client: " + e.getMessage());
+        }
+    }
 
-            String requestLine = in.readLine();
-            if (requestLine == null) return;
+    private static void handleRequest(RequestParser request, OutputStream out, boolean keepAlive) throws IOException {
+        // Handle HEAD request
+        if (request.method == RequestParser.HEAD) {
+            sendHeaders(out, 200, "OK", keepAlive);
+            return;
+        }
 
-            String[] requestParts = requestLine.split(" ");
-            String method = requestParts[0];
-            String path = requestParts[1];
+        // Handle GET request
+        if (request.method == RequestParser.GET) {
+            // The whole calculator state travels in a signed cookie, so any instance can serve the request
+            Session session = stateCookie.decode(request.stateCookie);
+            String path = request.path;
+            String action = request.action;
 
-            // Handle HEAD request
-            if (method.equals("HEAD")) {
-                sendHeaders(out, 200, "OK");
+            // Expression evaluation: /eval?expr=1%2B2;3*4[&mode=decimal]
+            if (action == null && (path.equals("/eval") || path.startsWith("/eval?"))) {
+                handleEval(parseQuery(path), out, keepAlive);
                 return;
             }
 
-            // Handle GET request
-            if (method.equals("GET")) {
-                // Parse cookies for persistent state
-                Map<String, String> cookies = parseCookies(in);
-                if (cookies.containsKey("calculatorState")) {
-                    restoreState(cookies.get("calculatorState"));
+            // Handle history page
+            if (action == null && (path.equals("/history") || path.startsWith("/history?"))) {
+                Map<String, String> query = parseQuery(path);
+                long offset;
+                int limit;
+                try {
+                    offset = query.containsKey("offset") ? Long.parseLong(query.get("offset")) : -1;
+                    limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : HISTORY_PAGE_SIZE;
+                } catch (NumberFormatException e) {
+                    sendErrorResponse(out, 400, "Invalid Page", keepAlive);
+                    return;
                 }
-
-                // Handle history page
-                if (path.equals("/history")) {
-                    sendHistoryPage(out);
+                if (limit <= 0 || limit > MAX_HISTORY_PAGE_SIZE) {
+                    sendErrorResponse(out, 400, "Invalid Page", keepAlive);
                     return;
                 }
+                sendHistoryPage(out, session, history.page(session.idText, offset, limit), request, keepAlive);
+                return;
+            }
 
-                // Process the calculator action
-                if (path.length() > 1) {
-                    String action = path.substring(1);
-                    if (!isValidAction(action)) {
-                        sendErrorResponse(out, 400, "Invalid Action");
-                        return;
-                    }
-                    processAction(action);
+            // Process the calculator action
+            if (action == null && !path.equals("/")) {
+                sendErrorResponse(out, 400, "Invalid Action", keepAlive);
+                return;
+            }
+            if (action != null) {
+                session = session.apply(action);
+                if (session.state.completed != null) {
+                    history.add(session.idText, session.state.completed);
+                }
+            }
 
+            // Send the response with updated state
+            sendCalculatorPage(out, session, request, keepAlive);
+        } else {
+            sendErrorResponse(out, 400, "Bad Request", keepAlive);
+        }
+    }
 
-                }
+    // Evaluates each ';'-separated expression in expr and answers one "expression = result" line per
+    // expression. mode=decimal evaluates in BigDecimal with EVAL_PRECISION digits instead of double.
+    private static void handleEval(Map<String, String> query, OutputStream out, boolean keepAlive) throws IOException {
+        String expr = query.get("expr");
+        if (expr == null) {
+            sendErrorResponse(out, 400, "Missing Expression", keepAlive);
+            return;
+        }
+        try {
+            expr = URLDecoder.decode(expr, "UTF-8");
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(out, 400, "Bad Expression Encoding", keepAlive);
+            return;
+        }
+        String[] batch = expr.split(";");
+        if (batch.length > MAX_BATCH_EXPRESSIONS) {
+            sendErrorResponse(out, 400, "Too Many Expressions", keepAlive);
+            return;
+        }
+        MathContext decimal = "decimal".equals(query.get("mode")) ? new MathContext(EVAL_PRECISION) : null;
 
-                // Send the response with updated state
-                sendCalculatorPage(out);
-            } else {
-                sendErrorResponse(out, 400, "Bad Request");
+        StringBuilder text = new StringBuilder(batch.length * 32);
+        for (String source : batch) {
+            source = source.trim();
+            if (source.isEmpty()) continue;
+            text.append(source).append(" = ");
+            try {
+                ExpressionEngine.Node node = expressions.compile(source);
+                text.append(decimal != null ? formatDecimal(node.evalDecimal(decimal)) : formatDouble(node.evalDouble()));
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                text.append("Error: ").append(e.getMessage());
             }
-        } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
+            text.append("\r\n");
+        }
+
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+        String headers = "HTTP/1.1 200 OK\r\n" +
+                         "Content-Type: text/plain; charset=utf-8\r\n" +
+                         "Content-Length: " + body.length + "\r\n" +
+                         connectionHeaders(keepAlive) +
+                         "\r\n";
+        out.write(headers.getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+    }
+
+    // Same formatting as the calculator display
+    private static String formatDouble(double result) {
+        if (result == (long) result) {
+            return String.valueOf((long) result);
         }
+        return String.valueOf(result);
+    }
+
+    private static String formatDecimal(BigDecimal result) {
+        BigDecimal stripped = result.stripTrailingZeros();
+        // Plain notation unless it would spell out a very large or very small exponent
+        return Math.abs(stripped.scale()) <= 100 ? stripped.toPlainString() : stripped.toString();
+    }
+
+    private static String connectionHeaders(boolean keepAlive) {
+        return keepAlive ? KEEP_ALIVE_HEADERS : CLOSE_HEADERS;
     }
 
-    private static void sendRedirect(OutputStream out, String location) throws IOException {
+    private static void sendRedirect(OutputStream out, String location, boolean keepAlive) throws IOException {
         String headers = "HTTP/1.1 302 Found\r\n" +
                         "Location: " + location + "\r\n" +
-                        "Connection: close\r\n" +
+                        "Content-Length: 0\r\n" +
+                        connectionHeaders(keepAlive) +
                         "\r\n";
         out.write(headers.getBytes("UTF-8"));
-        out.flush();
     }
 
-    private static void sendHistoryPage(OutputStream out) throws IOException {
-        StringBuilder html = new StringBuilder();
-
-        html.append("HTTP/1.1 200 OK\r\n");
-        html.append("Content-Type: text/html\r\n");
-        html.append("Connection: close\r\n");
-        html.append("\r\n");
-
-        html.append("<!DOCTYPE html>\r\n");
-        html.append("<html>\r\n");
-        html.append("<head>\r\n");
-        html.append("<title>Calculation History</title>\r\n");
-        html.append("<style>\r\n");
-        html.append("body { font-family: Arial, sans-serif; display: flex; justify-content: center; align-items: center; height: 100vh; margin: 0; background-color: #f4f4f4; }\r\n");
-        html.append(".history { width: 300px; background-color: #fff; border: 1px solid #ccc; border-radius: 10px; box-shadow: 0 4px 8px rgba(0, 0, 0, 0.1); padding: 20px; }\r\n");
-        html.append("</style>\r\n");
-        html.append("</head>\r\n");
-        html.append("<body>\r\n");
-        html.append("<div class=\"history\">\r\n");
-        html.append("<h2>Calculation History</h2>\r\n");
-        html.append("<ul>\r\n");
-        for (String entry : history) {
-            html.append("<li>").append(entry).append("</li>\r\n");
-        }
-        html.append("</ul>\r\n");
-        html.append("<a href=\"/\" class=\"button\">Back to Calculator</a>\r\n");
-        html.append("</div>\r\n");
-        html.append("</body>\r\n");
-        html.append("</html>\r\n");
-
-        out.write(html.toString().getBytes("UTF-8"));
-        out.flush();
+    // Only the requested page is rendered, between pre-encoded halves of the page
+    private static void sendHistoryPage(OutputStream out, Session session, HistoryPage page, RequestParser request, boolean keepAlive) throws IOException {
+        // The tag comes from the history's version, so a revalidation is answered without reading or rendering entries
+        String tag = "h" + HISTORY_PAGE.version + "-" + page.version + "-" + page.offset + "-" + page.limit;
+        sendPage(out, HISTORY_PAGE, () -> renderHistory(session, page), tag, session, request, keepAlive);
     }
 
-    private static Map<String, String> parseCookies(BufferedReader in) throws IOException {
-        Map<String, String> cookies = new HashMap<>();
-        String line;
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            if (line.startsWith("Cookie: ")) {
-                String[] cookiePairs = line.substring(8).split("; ");
-                for (String pair : cookiePairs) {
-                    String[] keyValue = pair.split("=");
-                    if (keyValue.length == 2) {
-                        cookies.put(keyValue[0], keyValue[1]);
-                    }
-                }
+    private static byte[] renderHistory(Session session, HistoryPage page) {
+        List<String> entries = history.entries(session.idText, page);
+        StringBuilder html = new StringBuilder(256 + entries.size() * 48);
+        if (page.total == 0) {
+            html.append("<p>No calculations yet.</p>\r\n");
+        } else {
+            long last = page.end();
+            html.append("<p>").append(page.offset + 1).append("-").append(last).append(" of ").append(page.total).append("</p>\r\n");
+            html.append("<ol start=\"").append(page.offset + 1).append("\">\r\n");
+            for (String entry : entries) {
+                html.append("<li>").append(entry == null ? "<em>no longer kept</em>" : entry).append("</li>\r\n");
+            }
+            html.append("</ol>\r\n");
+            if (page.offset > 0) {
+                html.append("<a href=\"/history?offset=").append(Math.max(0, page.offset - page.limit))
+                    .append("&amp;limit=").append(page.limit).append("\">Older</a>\r\n");
+            }
+            if (last < page.total) {
+                html.append("<a href=\"/history?offset=").append(last)
+                    .append("&amp;limit=").append(page.limit).append("\">Newer</a>\r\n");
+            }
+        }
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Answers 304 when the client already holds this exact representation, otherwise the page in the
+    // encoding the client accepts. Each encoding has its own strong ETag.
+    // The middle of the page is only produced when the client's copy is out of date
+    private static void sendPage(OutputStream out, CachedPage page, Supplier<byte[]> render, String tag, Session session,
+                                 RequestParser request, boolean keepAlive) throws IOException {
+        boolean gzip = GZIP_ENABLED && request.acceptsGzip;
+        String etag = gzip ? "\"" + tag + "-gz\"" : "\"" + tag + "\"";
+        String common = "ETag: " + etag + "\r\n" +
+                        CACHE_HEADERS +
+                        "Set-Cookie: " + STATE_COOKIE + "=" + stateCookie.encode(session) + "; Path=/; Max-Age=" + STATE_MAX_AGE_SECONDS + "; HttpOnly\r\n" +
+                        connectionHeaders(keepAlive);
+        if (request.ifNoneMatch != null && etagMatches(request.ifNoneMatch, etag)) {
+            out.write(("HTTP/1.1 304 Not Modified\r\n" + common + "\r\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        byte[] middle = render.get();
+        String headers = "HTTP/1.1 200 OK\r\n" +
+                         "Content-Type: text/html\r\n" +
+                         (gzip ? "Content-Encoding: gzip\r\n" : "") +
+                         "Content-Length: " + (gzip ? page.gzipLength(middle) : page.length(middle)) + "\r\n" +
+                         common +
+                         "\r\n";
+        out.write(headers.getBytes(StandardCharsets.UTF_8));
+        if (gzip) {
+            page.writeGzip(out, middle);
+        } else {
+            page.write(out, middle);
+        }
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2); // If-None-Match uses the weak comparison
             }
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
         }
-        return cookies;
+        return false;
     }
 
-    private static void restoreState(String state) {
-        String[] parts = state.split("\\|");
-        if (parts.length == 5) {
-            currentDisplay = parts[0];
-            firstOperand = parts[1];
-            secondOperand = parts[2];
-            operator = parts[3];
-            newOperand = Boolean.parseBoolean(parts[4]);
+    private static Map<String, String> parseQuery(String path) {
+        Map<String, String> query = new HashMap<>();
+        int question = path.indexOf('?');
+        if (question < 0) return query;
+        for (String pair : path.substring(question + 1).split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(pair.substring(0, equals), pair.substring(equals + 1));
+            }
         }
+        return query;
+    }
+
+    // A HEAD response never has a body, so it needs no Content-Length to stay framed
+    private static void sendHeaders(OutputStream out, int statusCode, String statusMessage, boolean keepAlive) throws IOException {
+        String headers = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
+                         "Content-Type: text/html\r\n" +
+                         connectionHeaders(keepAlive) +
+                         "\r\n";
+        out.write(headers.getBytes("UTF-8"));
     }
 
-    private static String getState() {
-        return currentDisplay + "|" + firstOperand + "|" + secondOperand + "|" + operator + "|" + newOperand;
+    // Headers, prefix, display and suffix are written into the connection's BufferedOutputStream,
+    // which hands the whole response to the socket in one write when handleClient flushes.
+    // The page is a function of the display alone, which only ever holds digits, '.', '-' and
+    // "Error", so the display itself versions the page; the same tag is valid on every instance.
+    private static void sendCalculatorPage(OutputStream out, Session session, RequestParser request, boolean keepAlive) throws IOException {
+        String display = session.state.currentDisplay;
+        String tag = "c" + CALCULATOR_PAGE.version + "-" + display;
+        sendPage(out, CALCULATOR_PAGE, () -> display.getBytes(StandardCharsets.UTF_8), tag, session, request, keepAlive);
     }
 
-    private static boolean isValidAction(String action) {
-        return action.matches("[0-9]") || action.matches("[+\\-*/]") || action.equals("=") || action.equals("C") || action.equals("div");
+    private static void sendErrorResponse(OutputStream out, int statusCode, String statusMessage, boolean keepAlive) throws IOException {
+        byte[] body = ("<html><body><h1>" + statusCode + " " + statusMessage + "</h1></body></html>").getBytes("UTF-8");
+        String headers = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
+                         "Content-Type: text/html\r\n" +
+                         "Content-Length: " + body.length + "\r\n" +
+                         connectionHeaders(keepAlive) +
+                         "\r\n";
+        out.write(headers.getBytes("UTF-8"));
+        out.write(body);
     }
 
-    private static void processAction(String action) {
-        if (action.equals("div")) {
-            action = "/";
+    // A page made of a constant prefix and suffix around a per-request middle. The gzip form is
+    // spliced the same way: the prefix is compressed once, ending on a sync flush so the stream is
+    // byte-aligned; the middle goes in as stored deflate blocks; the suffix is compressed once as the
+    // final blocks; only the gzip trailer (CRC-32 and length) is computed per response.
+    private static final class CachedPage {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        private static final int MAX_STORED_BLOCK = 65535;
+
+        final String version; // changes whenever the template does
+        private final byte[] prefix;
+        private final byte[] suffix;
+        private final byte[] gzipPrefix;
+        private final byte[] gzipSuffix;
+
+        CachedPage(byte[] prefix, byte[] suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.gzipPrefix = concat(GZIP_HEADER, deflate(prefix, false));
+            this.gzipSuffix = deflate(suffix, true);
+            CRC32 crc = new CRC32();
+            crc.update(prefix);
+            crc.update(suffix);
+            this.version = Long.toHexString(crc.getValue());
         }
 
-        if (action.matches("[0-9]")) {
-            if (newOperand || currentDisplay.equals("0") || calculationPerformed) {
-                currentDisplay = action;
-                newOperand = false;
-                calculationPerformed = false;
-            } else {
-                currentDisplay += action;
+        int length(byte[] middle) {
+            return prefix.length + middle.length + suffix.length;
+        }
+
+        void write(OutputStream out, byte[] middle) throws IOException {
+            out.write(prefix);
+            out.write(middle);
+            out.write(suffix);
+        }
+
+        int gzipLength(byte[] middle) {
+            int blocks = (middle.length + MAX_STORED_BLOCK - 1) / MAX_STORED_BLOCK;
+            return gzipPrefix.length + middle.length + blocks * 5 + gzipSuffix.length + 8;
+        }
+
+        void writeGzip(OutputStream out, byte[] middle) throws IOException {
+            out.write(gzipPrefix);
+            for (int offset = 0; offset < middle.length; offset += MAX_STORED_BLOCK) {
+                int length = Math.min(MAX_STORED_BLOCK, middle.length - offset);
+                out.write(0); // not final, stored, already byte-aligned
+                out.write(length);
+                out.write(length >>> 8);
+                out.write(~length);
+                out.write(~length >>> 8);
+                out.write(middle, offset, length);
             }
+            out.write(gzipSuffix);
 
-            if (operator.isEmpty()) {
-                firstOperand = currentDisplay;
-            } else {
-                secondOperand = currentDisplay;
+            CRC32 crc = new CRC32();
+            crc.update(prefix);
+            crc.update(middle);
+            crc.update(suffix);
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, length(middle));
+        }
+
+        private static byte[] deflate(byte[] input, boolean last) {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            try {
+                deflater.setInput(input);
+                if (last) deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[4096];
+                int n;
+                do {
+                    n = deflater.deflate(chunk, 0, chunk.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    out.write(chunk, 0, n);
+                } while (last ? !deflater.finished() : n == chunk.length);
+                return out.toByteArray();
+            } finally {
+                deflater.end();
             }
-        } else if (action.matches("[+\\-*/]")) {
-            if (!firstOperand.isEmpty() && !secondOperand.isEmpty()) {
-                calculate();
-                firstOperand = currentDisplay;
-                secondOperand = "";
-            } else if (currentDisplay.equals("0")) {
-                firstOperand = "0";
-            } else {
-                firstOperand = currentDisplay;
-            }
-            operator = action;
-            newOperand = true;
-        } else if (action.equals("=")) {
-            if (!firstOperand.isEmpty() && !secondOperand.isEmpty() && !operator.isEmpty()) {
-                calculate();
-                // Add calculation to history
-                history.add(firstOperand + " " + operator + " " + secondOperand + " = " + currentDisplay);
-                firstOperand = currentDisplay;
+        }
+
+        private static byte[] concat(byte[] a, byte[] b) {
+            byte[] joined = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, joined, a.length, b.length);
+            return joined;
+        }
+
+        private static void writeIntLE(OutputStream out, int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    // Calculator state for one client. Instances never change; each button press produces a new one.
+    private static final class CalcState {
+        static final CalcState INITIAL = new CalcState(new Press());
+
+        final String currentDisplay;
+        final String firstOperand;
+        final String secondOperand;
+        final String operator;
+        final boolean newOperand;
+        final boolean calculationPerformed;
+        final String completed; // calculation finished by the press that produced this state, or null
+
+        private CalcState(Press press) {
+            currentDisplay = press.currentDisplay;
+            firstOperand = press.firstOperand;
+            secondOperand = press.secondOperand;
+            operator = press.operator;
+            newOperand = press.newOperand;
+            calculationPerformed = press.calculationPerformed;
+            completed = press.completed;
+        }
+
+        CalcState apply(String action) {
+            Press press = new Press();
+            press.currentDisplay = currentDisplay;
+            press.firstOperand = firstOperand;
+            press.secondOperand = secondOperand;
+            press.operator = operator;
+            press.newOperand = newOperand;
+            press.calculationPerformed = calculationPerformed;
+            press.processAction(action);
+            return new CalcState(press);
+        }
+    }
+
+    // Scratch copy of a CalcState that a single button press is applied to
+    private static final class Press {
+        String currentDisplay = "0";
+        String firstOperand = "";
+        String secondOperand = "";
+        String operator = "";
+        boolean newOperand = true;
+        boolean calculationPerformed = false;
+        String completed;
+
+        void processAction(String action) {
+            char key = action.charAt(0);
+            if (key >= '0' && key <= '9') {
+                if (newOperand || currentDisplay.equals("0") || calculationPerformed) {
+                    currentDisplay = action;
+                    newOperand = false;
+                    calculationPerformed = false;
+                } else if (currentDisplay.length() < MAX_DISPLAY_DIGITS) {
+                    currentDisplay += action;
+                }
+
+                if (operator.isEmpty()) {
+                    firstOperand = currentDisplay;
+                } else {
+                    secondOperand = currentDisplay;
+                }
+            } else if (key == '+' || key == '-' || key == '*' || key == '/') {
+                if (!firstOperand.isEmpty() && !secondOperand.isEmpty()) {
+                    calculate();
+                    firstOperand = currentDisplay;
+                    secondOperand = "";
+                } else if (currentDisplay.equals("0")) {
+                    firstOperand = "0";
+                } else {
+                    firstOperand = currentDisplay;
+                }
+                operator = action;
+                newOperand = true;
+            } else if (action.equals("=")) {
+                if (!firstOperand.isEmpty() && !secondOperand.isEmpty() && !operator.isEmpty()) {
+                    calculate();
+                    // Recorded in the calculation history by the caller
+                    completed = firstOperand + " " + operator + " " + secondOperand + " = " + currentDisplay;
+                    firstOperand = currentDisplay;
+                    secondOperand = "";
+                    operator = "";
+                    calculationPerformed = true;
+
+                
+                }
+            } else if (action.equals("C")) {
+                currentDisplay = "0";
+                firstOperand = "";
                 secondOperand = "";
                 operator = "";
-                calculationPerformed = true;
+                newOperand = true;
+            }
+        }
 
-                
+        private void calculate() {
+            try {
+                double num1 = Double.parseDouble(firstOperand);
+                double num2 = Double.parseDouble(secondOperand);
+                firstOperand = Double.toString(num1);
+                secondOperand = Double.toString(num2);
+                double result = 0;
+
+                switch (operator) {
+                    case "+":
+                        result = num1 + num2;
+                        break;
+                    case "-":
+                        result = num1 - num2;
+                        break;
+                    case "*":
+                        result = num1 * num2;
+                        break;
+                    case "/":
+                        if (num2 != 0) {
+                            result = num1 / num2;
+                        } else {
+                            currentDisplay = "Error";
+                            return;
+                        }
+                        break;
+                }
+
+                if (result == (long) result) {
+                    currentDisplay = String.valueOf((long) result);
+                } else {
+                    currentDisplay = String.valueOf(result);
+                }
+            } catch (NumberFormatException e) {
+                currentDisplay = "Error";
             }
-        } else if (action.equals("C")) {
-            currentDisplay = "0";
-            firstOperand = "";
-            secondOperand = "";
-            operator = "";
-            newOperand = true;
         }
     }
 
-    private static void calculate() {
-        try {
-            double num1 = Double.parseDouble(firstOperand);
-            double num2 = Double.parseDouble(secondOperand);
-            firstOperand = Double.toString(num1);
-            secondOperand = Double.toString(num2);
-            double result = 0;
-
-            switch (operator) {
-                case "+":
-                    result = num1 + num2;
-                    break;
-                case "-":
-                    result = num1 - num2;
-                    break;
-                case "*":
-                    result = num1 * num2;
-                    break;
-                case "/":
-                    if (num2 != 0) {
-                        result = num1 / num2;
-                    } else {
-                        currentDisplay = "Error";
-                        return;
+    // One client's calculator: a random id (which keys its history) and its current state
+    private static final class Session {
+        final byte[] id;
+        final String idText;
+        final CalcState state;
+        final String cookie; // the cookie this session was decoded from, reused while the state is unchanged
+
+        Session(byte[] id, CalcState state, String cookie) {
+            this.id = id;
+            this.idText = Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+            this.state = state;
+            this.cookie = cookie;
+        }
+
+        Session apply(String action) {
+            return new Session(id, state.apply(action), null);
+        }
+    }
+
+    // Encodes a Session into the calculatorState cookie and back. Layout before base64url:
+    //   version | 16-byte id | issued-at (epoch seconds, 8 bytes) | flags (newOperand, calculationPerformed) |
+    //   operator | display, first operand, second operand as u16 length + UTF-8 | 16-byte truncated HMAC-SHA256
+    // A cookie that is malformed, fails the HMAC check or was issued more than STATE_MAX_AGE_SECONDS
+    // ago starts a fresh session, which bounds how long a captured cookie can be replayed.
+    private static final class StateCookie {
+        private static final byte VERSION = 2;
+        private static final int ID_LENGTH = 16;
+        private static final int CLOCK_SKEW_SECONDS = 60; // between instances sharing the secret
+        private static final int TAG_LENGTH = 16;
+
+        private final SecretKeySpec key;
+        private final SecureRandom random = new SecureRandom();
+        private final ThreadLocal<Mac> macs;
+
+        private StateCookie(byte[] secret) {
+            this.key = new SecretKeySpec(secret, "HmacSHA256");
+            this.macs = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        static StateCookie create() {
+            if (STATE_SECRET != null) {
+                return new StateCookie(STATE_SECRET.getBytes(StandardCharsets.UTF_8));
+            }
+            System.err.println("calculator.secret is not set; using a random key, so state cookies only work on this instance.");
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            return new StateCookie(secret);
+        }
+
+        String encode(Session session) {
+            if (session.cookie != null) return session.cookie;
+            CalcState state = session.state;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            bytes.write(VERSION);
+            bytes.write(session.id, 0, ID_LENGTH);
+            long issuedAt = System.currentTimeMillis() / 1000;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes.write((int) (issuedAt >>> shift));
+            }
+            bytes.write((state.newOperand ? 1 : 0) | (state.calculationPerformed ? 2 : 0));
+            bytes.write(state.operator.isEmpty() ? 0 : state.operator.charAt(0));
+            writeString(bytes, state.currentDisplay);
+            writeString(bytes, state.firstOperand);
+            writeString(bytes, state.secondOperand);
+            byte[] tag = macs.get().doFinal(bytes.toByteArray());
+            bytes.write(tag, 0, TAG_LENGTH);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        }
+
+        Session decode(String cookie) {
+            if (cookie != null) {
+                try {
+                    Session session = verifyAndRead(Base64.getUrlDecoder().decode(cookie), cookie);
+                    if (session != null) return session;
+                } catch (IllegalArgumentException | java.nio.BufferUnderflowException e) {
+                    // Not one of ours; start over below
+                }
+            }
+            byte[] id = new byte[ID_LENGTH];
+            random.nextBytes(id);
+            return new Session(id, CalcState.INITIAL, null);
+        }
+
+        private Session verifyAndRead(byte[] bytes, String cookie) {
+            int payload = bytes.length - TAG_LENGTH;
+            if (payload < 3 + ID_LENGTH + 8 || bytes[0] != VERSION) return null;
+            Mac mac = macs.get();
+            mac.update(bytes, 0, payload);
+            byte[] expected = Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+            if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(bytes, payload, bytes.length))) return null;
+
+            ByteBuffer in = ByteBuffer.wrap(bytes, 0, payload);
+            in.get();
+            byte[] id = new byte[ID_LENGTH];
+            in.get(id);
+            long age = System.currentTimeMillis() / 1000 - in.getLong();
+            if (age < -CLOCK_SKEW_SECONDS || age > STATE_MAX_AGE_SECONDS) return null;
+            int flags = in.get();
+            int operator = in.get() & 0xFF;
+            Press press = new Press();
+            press.newOperand = (flags & 1) != 0;
+            press.calculationPerformed = (flags & 2) != 0;
+            press.operator = operator == 0 ? "" : String.valueOf((char) operator);
+            press.currentDisplay = readString(in);
+            press.firstOperand = readString(in);
+            press.secondOperand = readString(in);
+            // Past half its lifetime the cookie is re-issued, so a client that only reloads keeps its state
+            return new Session(id, new CalcState(press), age > STATE_MAX_AGE_SECONDS / 2 ? null : cookie);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("State value of " + bytes.length + " bytes does not fit the cookie");
+            }
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static String readString(ByteBuffer in) {
+            int length = in.getShort() & 0xFFFF;
+            if (length > in.remaining()) throw new java.nio.BufferUnderflowException();
+            String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+    }
+
+    // Where a history page falls and which version of the history it shows. The entries themselves
+    // are only read when the page is rendered, so a revalidation answered with a 304 never reads them.
+    private static final class HistoryPage {
+        final long offset;
+        final int limit;
+        final long total;
+        final String version; // changes whenever the entries behind this page could differ
+        private final HistoryRing ring; // the ring the page was taken from, or null
+
+        HistoryPage(long offset, int limit, long total, String version, HistoryRing ring) {
+            this.offset = offset;
+            this.limit = limit;
+            this.total = total;
+            this.version = version;
+            this.ring = ring;
+        }
+
+        long end() {
+            return Math.min(total, offset + limit);
+        }
+    }
+
+    // The most recent calculations of one session. Entries are numbered from 0 in the order they
+    // were made; entry n sits in slot n % capacity for as long as it is among the last capacity.
+    private static final class HistoryRing {
+        final long generation; // unique per ring, so a ring recreated for the same session is told apart
+        private final String[] slots;
+        private long count;
+        volatile long lastWrite = System.currentTimeMillis();
+        boolean evicted; // set under the ring's lock once it has been dropped from the store
+
+        HistoryRing(long generation, int capacity, long count) {
+            this.generation = generation;
+            this.slots = new String[capacity];
+            this.count = count;
+        }
+
+        synchronized void add(String entry) {
+            slots[(int) (count % slots.length)] = entry;
+            count++;
+            lastWrite = System.currentTimeMillis();
+        }
+
+        synchronized long size() {
+            return count;
+        }
+
+        // Entries from..to-1, with null for those that have already been overwritten
+        synchronized List<String> range(long from, long to) {
+            List<String> entries = new ArrayList<>((int) (to - from));
+            for (long n = from; n < to; n++) {
+                entries.add(n >= count - slots.length ? slots[(int) (n % slots.length)] : null);
+            }
+            return entries;
+        }
+    }
+
+    // Per-session history rings, HISTORY_PER_SESSION entries each. At most HISTORY_MAX_ENTRIES are held
+    // in memory overall: when a new session needs a ring and the cap is reached, the ring written
+    // least recently is dropped. With calculator.history.file set, every entry is also appended to
+    // a HistoryLog, and pages older than a ring are read back from it; a dropped ring takes its
+    // session's log index with it, so the index stays as bounded as the rings.
+    private static class HistoryStore {
+        private final ConcurrentHashMap<String, HistoryRing> rings = new ConcurrentHashMap<>();
+        private final int maxRings = Math.max(1, HISTORY_MAX_ENTRIES / HISTORY_PER_SESSION);
+        private final HistoryLog log;
+        // Page versions only have to be unique within this process, whose history nobody else serves
+        private final String instance = Long.toHexString(new SecureRandom().nextLong());
+        private final AtomicLong generations = new AtomicLong();
+
+        private HistoryStore(HistoryLog log) {
+            this.log = log;
+        }
+
+        static HistoryStore create() {
+            if (HISTORY_FILE == null) return new HistoryStore(null);
+            try {
+                return new HistoryStore(HistoryLog.open(new File(HISTORY_FILE), Math.max(1, HISTORY_MAX_ENTRIES / HISTORY_PER_SESSION)));
+            } catch (IOException e) {
+                System.err.println("History log unavailable, keeping history in memory only: " + e.getMessage());
+                return new HistoryStore(null);
+            }
+        }
+
+        // The ring and the log index are updated under the ring's lock, so an eviction cannot fall
+        // between them and leave the index holding a session that no longer has a ring
+        void add(String sessionId, String entry) {
+            while (true) {
+                HistoryRing ring = ring(sessionId); // numbered from the log's count, so look it up first
+                synchronized (ring) {
+                    if (ring.evicted) continue;
+                    if (log != null) {
+                        try {
+                            log.append(sessionId, entry);
+                        } catch (IOException e) {
+                            System.err.println("Error writing history log: " + e.getMessage());
+                        }
                     }
-                    break;
+                    ring.add(entry);
+                    return;
+                }
             }
+        }
 
-            if (result == (long) result) {
-                currentDisplay = String.valueOf((long) result);
-            } else {
-                currentDisplay = String.valueOf(result);
+        private HistoryRing ring(String sessionId) {
+            HistoryRing ring = rings.get(sessionId);
+            if (ring != null) return ring;
+            if (rings.size() >= maxRings) {
+                evictLeastRecent();
+            }
+            return rings.computeIfAbsent(sessionId, id -> new HistoryRing(generations.incrementAndGet(), HISTORY_PER_SESSION, log == null ? 0 : log.count(id)));
+        }
+
+        private void evictLeastRecent() {
+            Map.Entry<String, HistoryRing> oldest = null;
+            for (Map.Entry<String, HistoryRing> entry : rings.entrySet()) {
+                if (oldest == null || entry.getValue().lastWrite < oldest.getValue().lastWrite) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) return;
+            HistoryRing ring = oldest.getValue();
+            synchronized (ring) {
+                if (rings.remove(oldest.getKey(), ring)) {
+                    ring.evicted = true;
+                    if (log != null) log.forget(oldest.getKey());
+                }
+            }
+        }
+
+        // offset < 0 selects the newest page. Entries are numbered and never rewritten, so a ring's
+        // generation and size (or the log's size when there is no ring) pin down every page's content.
+        HistoryPage page(String sessionId, long offset, int limit) {
+            HistoryRing ring = rings.get(sessionId);
+            long total = ring != null ? ring.size() : log != null ? log.count(sessionId) : 0;
+            if (offset < 0 || offset >= total) {
+                offset = Math.max(0, total - limit); // the newest page, also for an offset past the end
             }
-        } catch (NumberFormatException e) {
-            currentDisplay = "Error";
+            String version = instance + "." + (ring != null ? ring.generation : 0) + "." + total;
+            return new HistoryPage(offset, limit, total, version, ring);
+        }
+
+        // The page's entries, with null where an entry is no longer kept
+        List<String> entries(String sessionId, HistoryPage page) {
+            long from = page.offset;
+            long to = page.end();
+            List<String> entries = page.ring != null ? page.ring.range(from, to) : new ArrayList<>(Collections.nCopies((int) (to - from), (String) null));
+            if (log != null && entries.contains(null)) {
+                try {
+                    List<String> older = log.read(sessionId, from, to);
+                    for (int i = 0; i < entries.size(); i++) {
+                        if (entries.get(i) == null) entries.set(i, older.get(i));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error reading history log: " + e.getMessage());
+                }
+            }
+            return entries;
         }
     }
 
-    private static void sendHeaders(OutputStream out, int statusCode, String statusMessage) throws IOException {
-        String headers = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                         "Content-Type: text/html\r\n" +
-                         "Connection: close\r\n" +
-                         "\r\n";
-        out.write(headers.getBytes("UTF-8"));
-        out.flush();
+    // Append-only history file of "session<TAB>entry" lines, where session is a hash of the session
+    // id so the file does not hold live cookie ids. An in-memory index holds the file offset of every
+    // line per session, so any page is read back with a few positional reads instead of a scan. It
+    // is rebuilt at startup for the maxSessions sessions written most recently; HistoryStore drops
+    // a session's index together with its ring.
+    private static class HistoryLog {
+        private static final long UNWRITTEN = -1; // index slot of an entry whose append failed
+
+        private final FileChannel channel;
+        private final ConcurrentHashMap<String, OffsetList> index = new ConcurrentHashMap<>();
+        private long end;
+
+        private HistoryLog(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static HistoryLog open(File file, int maxSessions) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            HistoryLog log = new HistoryLog(channel);
+            // Access-ordered, so the sessions written least recently fall out once there are too many
+            Map<String, OffsetList> recent = new LinkedHashMap<String, OffsetList>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, OffsetList> eldest) {
+                    return size() > maxSessions;
+                }
+            };
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+                long position = 0;
+                long lineStart = 0;
+                ByteArrayOutputStream session = new ByteArrayOutputStream();
+                boolean inSession = true;
+                int b;
+                while ((b = in.read()) >= 0) {
+                    position++;
+                    if (b == '\n') {
+                        recent.computeIfAbsent(session.toString("UTF-8"), key -> new OffsetList()).add(lineStart);
+                        session.reset();
+                        inSession = true;
+                        lineStart = position;
+                    } else if (b == '\t') {
+                        inSession = false;
+                    } else if (inSession) {
+                        session.write(b);
+                    }
+                }
+                log.end = lineStart; // a torn last line is overwritten by the next append
+            }
+            log.index.putAll(recent);
+            return log;
+        }
+
+        // Every call takes one index slot, even when the write fails, so the entry numbers stay in
+        // step with the session's ring
+        synchronized void append(String sessionId, String entry) throws IOException {
+            String key = key(sessionId);
+            byte[] line = (key + "\t" + entry + "\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.wrap(line);
+            long position = end;
+            OffsetList offsets = index.computeIfAbsent(key, k -> new OffsetList());
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+            } catch (IOException e) {
+                offsets.add(UNWRITTEN);
+                try {
+                    channel.truncate(end); // drop a partly written line rather than leave it for the next scan
+                } catch (IOException ignored) {
+                    // The next append overwrites it from the same position
+                }
+                throw e;
+            }
+            end += line.length;
+            offsets.add(position);
+        }
+
+        long count(String sessionId) {
+            OffsetList offsets = index.get(key(sessionId));
+            return offsets == null ? 0 : offsets.size();
+        }
+
+        void forget(String sessionId) {
+            index.remove(key(sessionId));
+        }
+
+        List<String> read(String sessionId, long from, long to) throws IOException {
+            List<String> entries = new ArrayList<>((int) (to - from));
+            OffsetList offsets = index.get(key(sessionId));
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            for (long n = from; n < to; n++) {
+                long position = offsets == null || n >= offsets.size() ? UNWRITTEN : offsets.get((int) n);
+                entries.add(position == UNWRITTEN ? null : readEntry(position, buffer));
+            }
+            return entries;
+        }
+
+        // Session ids are 128 random bits, so an unkeyed hash is enough to keep them out of the file
+        private static String key(String sessionId) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(sessionId.getBytes(StandardCharsets.UTF_8));
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private String readEntry(long position, ByteBuffer buffer) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (true) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        String text = line.toString("UTF-8");
+                        return text.substring(text.indexOf('\t') + 1);
+                    }
+                    line.write(b);
+                }
+                position += n;
+            }
+            return null;
+        }
     }
 
-    private static void sendCalculatorPage(OutputStream out) throws IOException {
-        StringBuilder html = new StringBuilder();
-
-        html.append("HTTP/1.1 200 OK\r\n");
-        html.append("Content-Type: text/html\r\n");
-        html.append("Set-Cookie: calculatorState=" + getState() + "; Path=/\r\n");
-        html.append("Connection: close\r\n");
-        html.append("\r\n");
-
-        html.append("<!DOCTYPE html>\r\n");
-        html.append("<html>\r\n");
-        html.append("<head>\r\n");
-        html.append("<title>Simple Calculator</title>\r\n");
-        html.append("<style>\r\n");
-        html.append("body { font-family: Arial, sans-serif; display: flex; justify-content: center; align-items: center; height: 100vh; margin: 0; background-color: #f4f4f4; }\r\n");
-        html.append(".calculator { width: 300px; background-color: #fff; border: 1px solid #ccc; border-radius: 10px; box-shadow: 0 4px 8px rgba(0, 0, 0, 0.1); padding: 20px; }\r\n");
-        html.append(".display { width: 100%; height: 60px; background-color: #e0e0e0; border: 1px solid #ccc; border-radius: 5px; margin-bottom: 20px; text-align: right; font-size: 28px; padding: 10px; box-sizing: border-box; }\r\n");
-        html.append(".buttons { display: grid; grid-template-columns: repeat(4, 1fr); gap: 10px; }\r\n");
-        html.append(".button { background-color: #f0f0f0; border: 1px solid #ccc; border-radius: 5px; padding: 20px; text-align: center; cursor: pointer; font-size: 18px; transition: background-color 0.2s; }\r\n");
-        html.append(".button:hover { background-color: #d0d0d0; }\r\n");
-        html.append(".clear { grid-column: span 2; background-color: #ff6666; color: white; }\r\n");
-        html.append(".equals { background-color: #66cc66; color: white; }\r\n");
-        html.append(".operator { background-color: #ffcc66; color: white; }\r\n");
-        html.append("</style>\r\n");
-        html.append("</head>\r\n");
-        html.append("<body>\r\n");
-        html.append("<div class=\"calculator\">\r\n");
-        html.append("<div class=\"display\">").append(currentDisplay).append("</div>\r\n");
-        html.append("<div class=\"buttons\">\r\n");
-        html.append("<a href=\"/C\" class=\"button clear\">Clear</a>\r\n");
-        html.append("<a href=\"/div\" class=\"button operator\">/</a>\r\n");
-        html.append("<a href=\"/*\" class=\"button operator\">*</a>\r\n");
-        html.append("<a href=\"/7\" class=\"button\">7</a>\r\n");
-        html.append("<a href=\"/8\" class=\"button\">8</a>\r\n");
-        html.append("<a href=\"/9\" class=\"button\">9</a>\r\n");
-        html.append("<a href=\"/-\" class=\"button operator\">-</a>\r\n");
-        html.append("<a href=\"/4\" class=\"button\">4</a>\r\n");
-        html.append("<a href=\"/5\" class=\"button\">5</a>\r\n");
-        html.append("<a href=\"/6\" class=\"button\">6</a>\r\n");
-        html.append("<a href=\"/+\" class=\"button operator\">+</a>\r\n");
-        html.append("<a href=\"/1\" class=\"button\">1</a>\r\n");
-        html.append("<a href=\"/2\" class=\"button\">2</a>\r\n");
-        html.append("<a href=\"/3\" class=\"button\">3</a>\r\n");
-        html.append("<a href=\"/=\" class=\"button equals\">=</a>\r\n");
-        html.append("<a href=\"/history\" class=\"button\">History</a>\r\n");
-        html.append("<a href=\"/0\" class=\"button\" style=\"grid-column: span 3;\">0</a>\r\n");
-        html.append("</div>\r\n");
-        html.append("</div>\r\n");
-        html.append("</body>\r\n");
-        html.append("</html>\r\n");
-
-        out.write(html.toString().getBytes("UTF-8"));
-        out.flush();
+    // Growable list of file offsets, appended to under the HistoryLog lock and read without it
+    private static final class OffsetList {
+        private volatile long[] offsets = new long[8];
+        private volatile int size;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size] = offset;
+            size = size + 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(int i) {
+            return offsets[i];
+        }
     }
 
-    private static void sendErrorResponse(OutputStream out, int statusCode, String statusMessage) throws IOException {
-        String response = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                         "Content-Type: text/html\r\n" +
-                         "Connection: close\r\n" +
-                         "\r\n" +
-                         "<html><body><h1>" + statusCode + " " + statusMessage + "</h1></body></html>";
-        out.write(response.getBytes("UTF-8"));
-        out.flush();
+    // Compiles arithmetic expressions (numbers, + - * / % ^, unary minus, parentheses) with a Pratt
+    // parser into trees that evaluate in double or BigDecimal arithmetic. Number literals are parsed
+    // once, at compile time, and trees are cached by expression text, so a repeated expression is
+    // evaluated straight from its compiled form.
+    private static final class ExpressionEngine {
+        private static final int MAX_DEPTH = 200;
+
+        private final ConcurrentHashMap<String, Node> cache = new ConcurrentHashMap<>();
+        private final int cacheSize;
+
+        ExpressionEngine(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        // Throws IllegalArgumentException describing the first syntax error
+        Node compile(String source) {
+            Node node = cache.get(source);
+            if (node != null) return node;
+            if (source.length() > MAX_EXPRESSION_LENGTH) {
+                throw new IllegalArgumentException("expression too long");
+            }
+            node = new Parser(source).parse();
+            if (cache.size() >= cacheSize) {
+                // Bounded without bookkeeping on the hit path: make room by dropping any one entry
+                Iterator<String> keys = cache.keySet().iterator();
+                if (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                }
+            }
+            cache.put(source, node);
+            return node;
+        }
+
+        interface Node {
+            double evalDouble();
+
+            BigDecimal evalDecimal(MathContext mc);
+        }
+
+        private static final class Literal implements Node {
+            private final double value;
+            private final BigDecimal decimal;
+
+            Literal(String text) {
+                this.value = Double.parseDouble(text);
+                this.decimal = new BigDecimal(text);
+            }
+
+            public double evalDouble() {
+                return value;
+            }
+
+            public BigDecimal evalDecimal(MathContext mc) {
+                return decimal;
+            }
+        }
+
+        private static final class Negate implements Node {
+            private final Node operand;
+
+            Negate(Node operand) {
+                this.operand = operand;
+            }
+
+            public double evalDouble() {
+                return -operand.evalDouble();
+            }
+
+            public BigDecimal evalDecimal(MathContext mc) {
+                return operand.evalDecimal(mc).negate();
+            }
+        }
+
+        private static final class Binary implements Node {
+            private final char operator;
+            private final Node left;
+            private final Node right;
+
+            Binary(char operator, Node left, Node right) {
+                this.operator = operator;
+                this.left = left;
+                this.right = right;
+            }
+
+            public double evalDouble() {
+                double a = left.evalDouble();
+                double b = right.evalDouble();
+                switch (operator) {
+                    case '+':
+                        return a + b;
+                    case '-':
+                        return a - b;
+                    case '*':
+                        return a * b;
+                    case '/':
+                        if (b == 0) throw new ArithmeticException("division by zero");
+                        return a / b;
+                    case '%':
+                        if (b == 0) throw new ArithmeticException("division by zero");
+                        return a % b;
+                    default:
+                        return Math.pow(a, b);
+                }
+            }
+
+            public BigDecimal evalDecimal(MathContext mc) {
+                BigDecimal a = left.evalDecimal(mc);
+                BigDecimal b = right.evalDecimal(mc);
+                switch (operator) {
+                    case '+':
+                        return a.add(b, mc);
+                    case '-':
+                        return a.subtract(b, mc);
+                    case '*':
+                        return a.multiply(b, mc);
+                    case '/':
+                        if (b.signum() == 0) throw new ArithmeticException("division by zero");
+                        return a.divide(b, mc);
+                    case '%':
+                        if (b.signum() == 0) throw new ArithmeticException("division by zero");
+                        return a.remainder(b, mc);
+                    default:
+                        int exponent;
+                        try {
+                            exponent = b.intValueExact();
+                        } catch (ArithmeticException e) {
+                            throw new ArithmeticException("decimal mode needs an integer exponent");
+                        }
+                        return a.pow(exponent, mc);
+                }
+            }
+        }
+
+        // Tokenizes on the fly; each call to parse(minPower) consumes one operand and then every
+        // operator that binds at least as tightly as minPower.
+        private static final class Parser {
+            private static final int PREFIX_POWER = 5; // below ^, so -2^2 is -(2^2)
+
+            private final String source;
+            private int pos;
+            private int depth;
+
+            Parser(String source) {
+                this.source = source;
+            }
+
+            Node parse() {
+                Node node = parse(0);
+                skipSpaces();
+                if (pos < source.length()) {
+                    throw error("unexpected '" + source.charAt(pos) + "'");
+                }
+                return node;
+            }
+
+            private Node parse(int minPower) {
+                if (++depth > MAX_DEPTH) throw error("expression nested too deeply");
+                Node left = operand();
+                while (true) {
+                    skipSpaces();
+                    if (pos >= source.length()) break;
+                    char operator = source.charAt(pos);
+                    int leftPower = leftPower(operator);
+                    if (leftPower < 0 || leftPower < minPower) break;
+                    pos++;
+                    // ^ is right-associative, the others left-associative
+                    Node right = parse(operator == '^' ? leftPower - 1 : leftPower + 1);
+                    left = new Binary(operator, left, right);
+                }
+                depth--;
+                return left;
+            }
+
+            private Node operand() {
+                skipSpaces();
+                if (pos >= source.length()) throw error("unexpected end of expression");
+                char c = source.charAt(pos);
+                if (c == '(') {
+                    pos++;
+                    Node inner = parse(0);
+                    skipSpaces();
+                    if (pos >= source.length() || source.charAt(pos) != ')') throw error("missing ')'");
+                    pos++;
+                    return inner;
+                }
+                if (c == '-' || c == '+') {
+                    pos++;
+                    Node operand = parse(PREFIX_POWER);
+                    return c == '-' ? new Negate(operand) : operand;
+                }
+                if (Character.isDigit(c) || c == '.') {
+                    return number();
+                }
+                throw error("unexpected '" + c + "'");
+            }
+
+            private Node number() {
+                int start = pos;
+                while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+                if (pos < source.length() && source.charAt(pos) == '.') {
+                    pos++;
+                    while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+                }
+                if (pos < source.length() && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+                    int mark = pos++;
+                    if (pos < source.length() && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) pos++;
+                    if (pos < source.length() && Character.isDigit(source.charAt(pos))) {
+                        while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+                    } else {
+                        pos = mark; // not an exponent after all
+                    }
+                }
+                try {
+                    return new Literal(source.substring(start, pos));
+                } catch (NumberFormatException e) {
+                    throw error("bad number '" + source.substring(start, pos) + "'");
+                }
+            }
+
+            private static int leftPower(char operator) {
+                switch (operator) {
+                    case '+':
+                    case '-':
+                        return 1;
+                    case '*':
+                    case '/':
+                    case '%':
+                        return 3;
+                    case '^':
+                        return 6;
+                    default:
+                        return -1;
+                }
+            }
+
+            private void skipSpaces() {
+                while (pos < source.length() && source.charAt(pos) == ' ') pos++;
+            }
+
+            private IllegalArgumentException error(String message) {
+                return new IllegalArgumentException(message + " at position " + (pos + 1));
+            }
+        }
+    }
+
+    // Parses requests from one connection in place, in a single reusable buffer. Only what the server
+    // uses is extracted: method, target, HTTP version, Connection, Content-Length, Accept-Encoding,
+    // If-None-Match and the state cookie.
+    // A button click maps straight to an interned action string through ACTIONS, so the click path
+    // runs no regex and allocates no String per header; other targets are decoded into path.
+    private static final class RequestParser {
+        static final int OTHER = 0;
+        static final int GET = 1;
+        static final int HEAD = 2;
+
+        private static final String[] ACTIONS = new String[128];
+        private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] COOKIE = "cookie".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] ACCEPT_ENCODING = "accept-encoding".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] IF_NONE_MATCH = "if-none-match".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] GZIP = "gzip".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] X_GZIP = "x-gzip".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] STATE_COOKIE_NAME = STATE_COOKIE.getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] DIV = "/div".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+
+        static {
+            for (char c : "0123456789+-*/=C".toCharArray()) {
+                ACTIONS[c] = String.valueOf(c).intern();
+            }
+        }
+
+        private final InputStream in;
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_BYTES); // position..limit: unparsed input
+        private final byte[] bytes = buffer.array();
+
+        // The request most recently returned by next()
+        int method;
+        String action; // set for a button click, path is then null
+        String path;
+        String stateCookie;
+        String ifNoneMatch;
+        boolean acceptsGzip;
+        boolean malformed;
+        boolean transferEncoding; // any Transfer-Encoding header, answered with a 501 and a close
+        private boolean http11;
+        private int connection; // 0 absent, 1 close, 2 keep-alive
+        private long contentLength;
+
+        RequestParser(InputStream in) {
+            this.in = in;
+            buffer.flip();
+        }
+
+        // Returns false once the client has closed the connection between requests
+        boolean next() throws IOException {
+            method = OTHER;
+            action = null;
+            path = null;
+            stateCookie = null;
+            ifNoneMatch = null;
+            acceptsGzip = false;
+            malformed = false;
+            transferEncoding = false;
+            http11 = false;
+            connection = 0;
+            contentLength = -1;
+
+            int end;
+            while ((end = headerEnd()) < 0) {
+                if (!fill()) {
+                    if (onlyBlankLines()) return false;
+                    throw new EOFException("Request cut short");
+                }
+                if (buffer.remaining() == buffer.capacity() && headerEnd() < 0) {
+                    malformed = true; // headers larger than the buffer
+                    return true;
+                }
+            }
+            int start = buffer.position();
+            while (bytes[start] == '\r' || bytes[start] == '\n') start++; // stray CRLF between requests
+            parse(start, end);
+            buffer.position(end);
+            return true;
+        }
+
+        // Index just past the blank line ending the headers, or -1 if it has not arrived yet
+        private int headerEnd() {
+            int i = buffer.position();
+            int limit = buffer.limit();
+            while (i < limit && (bytes[i] == '\r' || bytes[i] == '\n')) i++;
+            for (; i < limit; i++) {
+                if (bytes[i] != '\n') continue;
+                if (i + 1 < limit && bytes[i + 1] == '\n') return i + 2;
+                if (i + 2 < limit && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') return i + 3;
+            }
+            return -1;
+        }
+
+        private boolean onlyBlankLines() {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (bytes[i] != '\r' && bytes[i] != '\n') return false;
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            buffer.compact();
+            int n = buffer.hasRemaining() ? in.read(bytes, buffer.position(), buffer.remaining()) : 0;
+            if (n > 0) buffer.position(buffer.position() + n);
+            buffer.flip();
+            return n > 0;
+        }
+
+        private void parse(int start, int end) {
+            int lineEnd = lineEnd(start, end);
+            int space1 = indexOf(' ', start, lineEnd);
+            int space2 = space1 < 0 ? -1 : indexOf(' ', space1 + 1, lineEnd);
+            if (space2 < 0 || indexOf(' ', space2 + 1, lineEnd) >= 0) { // exactly method, target and version
+                malformed = true;
+                return;
+            }
+            int methodLength = space1 - start;
+            if (methodLength == 3 && bytes[start] == 'G' && bytes[start + 1] == 'E' && bytes[start + 2] == 'T') {
+                method = GET;
+            } else if (methodLength == 4 && bytes[start] == 'H' && bytes[start + 1] == 'E' && bytes[start + 2] == 'A' && bytes[start + 3] == 'D') {
+                method = HEAD;
+            }
+            parseTarget(space1 + 1, space2);
+            http11 = regionEquals(space2 + 1, lineEnd, HTTP_1_1, false);
+
+            int headers = 0;
+            for (int line = nextLine(start, end); line < end; line = nextLine(line, end)) {
+                int stop = lineEnd(line, end);
+                if (stop == line) break;
+                if (++headers > MAX_HEADERS) {
+                    malformed = true;
+                    return;
+                }
+                int colon = indexOf(':', line, stop);
+                if (colon < 0) continue;
+                int value = skipSpaces(colon + 1, stop);
+                if (regionEquals(line, colon, CONNECTION, true)) {
+                    int valueEnd = trimEnd(value, stop);
+                    connection = regionEquals(value, valueEnd, CLOSE, true) ? 1 : regionEquals(value, valueEnd, KEEP_ALIVE, true) ? 2 : 0;
+                } else if (regionEquals(line, colon, CONTENT_LENGTH, true)) {
+                    // A repeated Content-Length is rejected outright rather than picking one of the values
+                    contentLength = contentLength == -1 ? parseLength(value, trimEnd(value, stop)) : -2;
+                } else if (regionEquals(line, colon, TRANSFER_ENCODING, true)) {
+                    transferEncoding = true;
+                } else if (regionEquals(line, colon, COOKIE, true)) {
+                    findStateCookie(value, stop);
+                } else if (regionEquals(line, colon, ACCEPT_ENCODING, true)) {
+                    acceptsGzip = acceptsGzip(value, trimEnd(value, stop));
+                } else if (regionEquals(line, colon, IF_NONE_MATCH, true)) {
+                    ifNoneMatch = new String(bytes, value, trimEnd(value, stop) - value, StandardCharsets.ISO_8859_1);
+                }
+            }
+        }
+
+        private void parseTarget(int start, int end) {
+            int length = end - start;
+            if (length == 2 && bytes[start] == '/' && bytes[start + 1] >= 0 && ACTIONS[bytes[start + 1]] != null) {
+                action = ACTIONS[bytes[start + 1]];
+            } else if (regionEquals(start, end, DIV, false)) {
+                action = ACTIONS['/'];
+            } else if (length == 1 && bytes[start] == '/') {
+                path = "/";
+            } else {
+                path = new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        // Cookie: a=1; calculatorState=...; b=2
+        private void findStateCookie(int start, int end) {
+            int pair = start;
+            while (pair < end) {
+                int pairEnd = indexOf(';', pair, end);
+                if (pairEnd < 0) pairEnd = end;
+                int equals = indexOf('=', pair, pairEnd);
+                if (equals > 0 && regionEquals(pair, equals, STATE_COOKIE_NAME, false)) {
+                    stateCookie = new String(bytes, equals + 1, trimEnd(equals + 1, pairEnd) - equals - 1, StandardCharsets.ISO_8859_1);
+                    return;
+                }
+                pair = skipSpaces(pairEnd + 1, end);
+            }
+        }
+
+        // Accept-Encoding: gzip, deflate;q=0.5 - an explicit gzip or x-gzip entry decides, so
+        // "*;q=0, gzip" accepts gzip; without one, * does. q=0 refuses.
+        private boolean acceptsGzip(int start, int end) {
+            int explicit = -1; // -1 not listed, 0 refused, 1 accepted
+            int wildcard = -1;
+            int coding = start;
+            while (coding < end) {
+                int codingEnd = indexOf(',', coding, end);
+                if (codingEnd < 0) codingEnd = end;
+                int params = indexOf(';', coding, codingEnd);
+                int nameEnd = trimEnd(coding, params < 0 ? codingEnd : params);
+                int accepted = params < 0 || !zeroQuality(params + 1, codingEnd) ? 1 : 0;
+                if (regionEquals(coding, nameEnd, GZIP, true) || regionEquals(coding, nameEnd, X_GZIP, true)) {
+                    explicit = Math.max(explicit, accepted);
+                } else if (nameEnd - coding == 1 && bytes[coding] == '*') {
+                    wildcard = Math.max(wildcard, accepted);
+                }
+                coding = skipSpaces(codingEnd + 1, end);
+            }
+            return (explicit >= 0 ? explicit : wildcard) == 1;
+        }
+
+        private boolean zeroQuality(int start, int end) {
+            int q = skipSpaces(start, end);
+            end = trimEnd(q, end);
+            if (end - q < 3 || (bytes[q] != 'q' && bytes[q] != 'Q') || bytes[q + 1] != '=') return false;
+            for (int i = q + 2; i < end; i++) {
+                if (bytes[i] != '0' && bytes[i] != '.') return false;
+            }
+            return true;
+        }
+
+        private long parseLength(int start, int end) {
+            if (start == end || end - start > 18) return -2;
+            long length = 0;
+            for (int i = start; i < end; i++) {
+                if (bytes[i] < '0' || bytes[i] > '9') return -2;
+                length = length * 10 + (bytes[i] - '0');
+            }
+            return length;
+        }
+
+        // Reads and discards the body so the next pipelined request starts at the right byte
+        boolean skipBody() throws IOException {
+            if (contentLength == -2) return false;
+            long remaining = Math.max(0, contentLength);
+            int buffered = (int) Math.min(remaining, buffer.remaining());
+            buffer.position(buffer.position() + buffered);
+            remaining -= buffered;
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) throw new EOFException("Request body cut short");
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            return true;
+        }
+
+        // HTTP/1.1 connections persist unless the client says otherwise; HTTP/1.0 ones only on request
+        boolean wantsKeepAlive() {
+            return connection == 0 ? http11 : connection == 2;
+        }
+
+        // True when the next request's headers are complete in the buffer; only pulls in bytes the
+        // socket already holds, so a partial request never holds back the responses before it
+        boolean hasBufferedRequest() throws IOException {
+            while (headerEnd() < 0) {
+                if (buffer.remaining() == buffer.capacity() || in.available() <= 0 || !fill()) return false;
+            }
+            return true;
+        }
+
+        private int lineEnd(int start, int end) {
+            int newline = indexOf('\n', start, end);
+            int stop = newline < 0 ? end : newline;
+            return stop > start && bytes[stop - 1] == '\r' ? stop - 1 : stop;
+        }
+
+        private int nextLine(int start, int end) {
+            int newline = indexOf('\n', start, end);
+            return newline < 0 ? end : newline + 1;
+        }
+
+        private int indexOf(char c, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (bytes[i] == c) return i;
+            }
+            return -1;
+        }
+
+        private int skipSpaces(int start, int end) {
+            while (start < end && bytes[start] == ' ') start++;
+            return start;
+        }
+
+        private int trimEnd(int start, int end) {
+            while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\r')) end--;
+            return end;
+        }
+
+        // expected is lowercase when ignoreCase is set
+        private boolean regionEquals(int start, int end, byte[] expected, boolean ignoreCase) {
+            if (end - start != expected.length) return false;
+            for (int i = 0; i < expected.length; i++) {
+                int b = bytes[start + i];
+                if (ignoreCase && b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                if (b != expected[i]) return false;
+            }
+            return true;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+import java.lang.invoke.*;
+
+// Cost of carrying the calculator state in the calculatorState cookie, per request:
+//   pipe   - the old unsigned "display|first|second|operator|newOperand" string, built by
+//            getState and split apart by restoreState
+//   signed - StateCookie: the binary layout with issued-at, base64url and a truncated HMAC-SHA256
+// encode is measured on a session whose state just changed, so the cookie is built and signed in
+// full; decode verifies the HMAC and the age and rebuilds the session. Reports time and bytes
+// allocated per call (timed by Bench), and the cookie length.
+//
+//   javac CalculatorServer.java Bench.java CookieBenchmark.java && java CookieBenchmark
+public class CookieBenchmark {
+    private static final int OPS_PER_ROUND = 100_000;
+
+    private static final MethodHandle ENCODE;
+    private static final MethodHandle DECODE;
+    private static final Object COOKIES;
+    private static final Object SESSION; // "12 + 34" being entered, not yet signed
+
+    static {
+        System.setProperty("calculator.secret", "cookie-benchmark"); // keeps the server's random-key warning quiet
+        try {
+            MethodHandles.Lookup server = MethodHandles.privateLookupIn(CalculatorServer.class, MethodHandles.lookup());
+            Class<?> sessionClass = Class.forName("CalculatorServer$Session");
+            Class<?> cookieClass = Class.forName("CalculatorServer$StateCookie");
+
+            COOKIES = server.findStaticGetter(CalculatorServer.class, "stateCookie", cookieClass).invoke();
+            ENCODE = server.findVirtual(cookieClass, "encode", MethodType.methodType(String.class, sessionClass))
+                .asType(MethodType.methodType(String.class, Object.class, Object.class));
+            DECODE = server.findVirtual(cookieClass, "decode", MethodType.methodType(sessionClass, String.class))
+                .asType(MethodType.methodType(Object.class, Object.class, String.class));
+            MethodHandle apply = server.findVirtual(sessionClass, "apply", MethodType.methodType(sessionClass, String.class));
+            Object session = DECODE.invoke(COOKIES, (String) null);
+            for (String action : new String[] {"1", "2", "+", "3", "4"}) {
+                session = apply.invoke(session, action);
+            }
+            SESSION = session;
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static long sink; // results are folded in here so the calls cannot be optimized away
+
+    public static void main(String[] args) throws Throwable {
+        String pipe = getState("34", "12", "34", "+", false);
+        String signed = (String) ENCODE.invokeExact(COOKIES, SESSION);
+        System.out.println("cookie length: pipe " + pipe.length() + ", signed " + signed.length());
+
+        System.out.printf("%-8s %-8s %10s %10s%n", "format", "call", "ns/op", "B/op");
+        report("pipe", "encode", () -> sink += getState("34", "12", "34", "+", false).length());
+        report("pipe", "decode", () -> sink += restoreState(pipe).length);
+        report("signed", "encode", () -> sink += ((String) ENCODE.invokeExact(COOKIES, SESSION)).length());
+        report("signed", "decode", () -> sink += ((Object) DECODE.invokeExact(COOKIES, signed)).hashCode());
+        if (sink == 0) throw new AssertionError("nothing measured");
+    }
+
+    private static void report(String format, String call, Bench.Op op) throws Throwable {
+        double[] perOp = Bench.measure(OPS_PER_ROUND, op);
+        System.out.printf("%-8s %-8s %10.1f %10.1f%n", format, call, perOp[0], perOp[1]);
+    }
+
+    // getState and restoreState as they were when the state lived in static fields
+    private static String getState(String currentDisplay, String firstOperand, String secondOperand,
+                                   String operator, boolean newOperand) {
+        return currentDisplay + "|" + firstOperand + "|" + secondOperand + "|" + operator + "|" + newOperand;
+    }
+
+    private static String[] restoreState(String state) {
+        String[] parts = state.split("\\|");
+        if (parts.length == 5) {
+            Boolean.parseBoolean(parts[4]);
+        }
+        return parts;
+    }
+}
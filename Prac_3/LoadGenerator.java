@@ -0,0 +1,228 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Load generator for CalculatorServer. For each execution mode it starts the server, then runs a
+// fixed number of client connections that click through "1 + 2 =" as fast as the server answers,
+// carrying the state cookie from one response to the next like a browser. After a warm-up it
+// reports requests per second and latency percentiles over the measured window, plus how many
+// requests were turned away with a 503.
+//
+//   javac CalculatorServer.java LoadGenerator.java
+//   java LoadGenerator [connections=64] [seconds=10] [modes=pool,virtual]
+public class LoadGenerator {
+    private static final int PORT = Integer.getInteger("loadgen.port", 18280);
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("loadgen.timeout", 5000);
+    private static final int WARMUP_SECONDS = Integer.getInteger("loadgen.warmup", 3);
+    private static final String[] CLICKS = {"/1", "/+", "/2", "/="};
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String[] modes = (args.length > 2 ? args[2] : "pool,virtual").split(",");
+
+        System.out.printf("%-8s %6s %9s %9s %9s %9s %9s %7s%n",
+            "mode", "conns", "requests", "req/s", "p50 ms", "p99 ms", "max ms", "503s");
+        for (String mode : modes) {
+            if (mode.equals("virtual") && !virtualThreadsAvailable()) {
+                System.out.printf("%-8s skipped: Java %s has no virtual threads, so the server would fall back to its pool%n",
+                    mode, System.getProperty("java.specification.version"));
+                continue;
+            }
+            Path dir = Files.createTempDirectory("loadgen-" + mode);
+            Process server = startServer(mode, dir);
+            try {
+                run(mode, connections, seconds);
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    // Same JVM as the server this starts; if it lacks virtual threads, "virtual" mode is the pool again
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static Process startServer(String mode, Path dir) throws IOException, InterruptedException {
+        String classPath = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+            .map(entry -> new File(entry).getAbsolutePath())
+            .collect(Collectors.joining(File.pathSeparator));
+        Process server = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath,
+                "-Dcalculator.mode=" + mode,
+                "-Dcalculator.port=" + PORT,
+                "CalculatorServer")
+            .directory(dir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(dir.resolve("stdout.txt").toFile())
+            .start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("localhost", PORT).close();
+                return server;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+                    server.destroy();
+                    throw new IOException("Server in " + mode + " mode did not start; see " + dir.resolve("stdout.txt"));
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void run(String mode, int connections, int seconds) throws Exception {
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        List<Future<Client>> results = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            results.add(clients.submit(() -> new Client().run(measureFrom, measureUntil)));
+        }
+
+        long[] latencies = new long[0];
+        long rejected = 0;
+        long failed = 0;
+        for (Future<Client> result : results) {
+            Client client = result.get();
+            int at = latencies.length;
+            latencies = Arrays.copyOf(latencies, at + client.count);
+            System.arraycopy(client.latencies, 0, latencies, at, client.count);
+            rejected += client.rejected;
+            failed += client.failed;
+        }
+        clients.shutdown();
+        Arrays.sort(latencies);
+
+        System.out.printf("%-8s %6d %9d %9.0f %9s %9s %9s %7d%n", mode, connections, latencies.length,
+            latencies.length / (double) seconds, percentile(latencies, 0.50), percentile(latencies, 0.99),
+            percentile(latencies, 1.0), rejected);
+        if (failed > 0) {
+            System.out.println("         " + failed + " requests failed (timeout or connection error)");
+        }
+    }
+
+    private static String percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return "-";
+        long nanos = sorted[(int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(fraction * sorted.length) - 1))];
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    // One keep-alive connection that reconnects whenever the server closes it. Only requests that
+    // start and finish inside the measured window are recorded.
+    private static class Client {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long rejected;
+        private long failed;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private String cookie;
+
+        Client run(long measureFrom, long measureUntil) {
+            for (int click = 0; ; click++) {
+                long start = System.nanoTime();
+                if (start >= measureUntil) break;
+                int status = request(CLICKS[click % CLICKS.length]);
+                long end = System.nanoTime();
+                if (start < measureFrom || end > measureUntil) continue;
+                if (status == 200) {
+                    if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = end - start;
+                } else if (status == 503) {
+                    rejected++;
+                } else {
+                    failed++;
+                }
+            }
+            close();
+            return this;
+        }
+
+        // Sends one click and reads the whole response; returns its status, or -1 on failure
+        private int request(String path) {
+            try {
+                if (socket == null) connect();
+                String request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (cookie != null ? "Cookie: calculatorState=" + cookie + "\r\n" : "") + "\r\n";
+                out.write(request.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return readResponse();
+            } catch (IOException e) {
+                close();
+                return -1;
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress("localhost", PORT), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private int readResponse() throws IOException {
+            String statusLine = readLine();
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            int length = 0;
+            boolean closing = false;
+            for (String line; !(line = readLine()).isEmpty(); ) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Integer.parseInt(value);
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    closing = value.equalsIgnoreCase("close");
+                } else if (name.equalsIgnoreCase("Set-Cookie") && value.startsWith("calculatorState=")) {
+                    int end = value.indexOf(';');
+                    cookie = value.substring("calculatorState=".length(), end < 0 ? value.length() : end);
+                }
+            }
+            for (long skipped = 0; skipped < length; ) {
+                long n = in.skip(length - skipped);
+                if (n <= 0) {
+                    if (in.read() < 0) throw new EOFException("truncated body");
+                    n = 1;
+                }
+                skipped += n;
+            }
+            if (closing) close();
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) != '\n'; ) {
+                if (c < 0) throw new EOFException("connection closed");
+                if (c != '\r') line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        private void close() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+}
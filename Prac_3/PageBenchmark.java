@@ -0,0 +1,171 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.charset.StandardCharsets;
+
+// Compares building the calculator page the way sendCalculatorPage used to - the whole response
+// appended to a StringBuilder and encoded with getBytes on every click - against the server's
+// current path, which splices the display between the pre-encoded prefix and suffix.
+//   page     - the HTML body alone: StringBuilder + getBytes against CachedPage.write
+//   response - status line, headers, cookie and body: the old method against sendCalculatorPage
+// The response rows use a session decoded from its cookie, so the signed cookie is reused rather
+// than re-signed, as it is for a repeated page load. Output goes to a buffered stream that discards
+// it; time and bytes allocated are reported per page, timed by Bench.
+//
+//   javac CalculatorServer.java Bench.java PageBenchmark.java && java PageBenchmark
+public class PageBenchmark {
+    private static final int OPS_PER_ROUND = 100_000;
+    private static final String[] CLICKS = {"1", "2", "3", "4", "5", "6", "7", "8", "/", "8", "="};
+    private static final String DISPLAY = "1543209.75"; // what CLICKS leave on the display
+
+    private static final MethodHandle SEND_CALCULATOR_PAGE;
+    private static final MethodHandle WRITE_PAGE;
+    private static final Object CALCULATOR_PAGE;
+    private static final Object SESSION;
+    private static final Object REQUEST;
+
+    static {
+        System.setProperty("calculator.secret", "page-benchmark"); // keeps the server's random-key warning quiet
+        try {
+            MethodHandles.Lookup server = MethodHandles.privateLookupIn(CalculatorServer.class, MethodHandles.lookup());
+            Class<?> sessionClass = Class.forName("CalculatorServer$Session");
+            Class<?> parserClass = Class.forName("CalculatorServer$RequestParser");
+            Class<?> pageClass = Class.forName("CalculatorServer$CachedPage");
+            Class<?> cookieClass = Class.forName("CalculatorServer$StateCookie");
+
+            SEND_CALCULATOR_PAGE = server.findStatic(CalculatorServer.class, "sendCalculatorPage",
+                    MethodType.methodType(void.class, OutputStream.class, sessionClass, parserClass, boolean.class))
+                .asType(MethodType.methodType(void.class, OutputStream.class, Object.class, Object.class, boolean.class));
+            WRITE_PAGE = server.findVirtual(pageClass, "write", MethodType.methodType(void.class, OutputStream.class, byte[].class))
+                .asType(MethodType.methodType(void.class, Object.class, OutputStream.class, byte[].class));
+            CALCULATOR_PAGE = server.findStaticGetter(CalculatorServer.class, "CALCULATOR_PAGE", pageClass).invoke();
+
+            // A session showing DISPLAY, round-tripped through its cookie like a browser's next request
+            Class<?> stateClass = Class.forName("CalculatorServer$CalcState");
+            Object cookies = server.findStaticGetter(CalculatorServer.class, "stateCookie", cookieClass).invoke();
+            MethodHandle decode = server.findVirtual(cookieClass, "decode", MethodType.methodType(sessionClass, String.class));
+            MethodHandle encode = server.findVirtual(cookieClass, "encode", MethodType.methodType(String.class, sessionClass));
+            MethodHandle apply = server.findVirtual(sessionClass, "apply", MethodType.methodType(sessionClass, String.class));
+            Object session = decode.invoke(cookies, (String) null);
+            for (String click : CLICKS) {
+                session = apply.invoke(session, click);
+            }
+            SESSION = decode.invoke(cookies, (String) encode.invoke(cookies, session));
+            Object state = server.findGetter(sessionClass, "state", stateClass).invoke(SESSION);
+            Object shown = server.findGetter(stateClass, "currentDisplay", String.class).invoke(state);
+            if (!DISPLAY.equals(shown)) {
+                throw new IllegalStateException("CLICKS display " + shown + ", not " + DISPLAY);
+            }
+
+            byte[] get = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            REQUEST = server.findConstructor(parserClass, MethodType.methodType(void.class, InputStream.class))
+                .invoke((InputStream) new ByteArrayInputStream(get));
+            server.findVirtual(parserClass, "next", MethodType.methodType(boolean.class)).invoke(REQUEST);
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Discards everything, but counts it so the writes cannot be optimized away
+    private static class Sink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        Sink sink = new Sink();
+        OutputStream out = new BufferedOutputStream(sink, 16 * 1024);
+        String state = DISPLAY + "|" + DISPLAY + "||+|true";
+
+        System.out.printf("%-10s %-8s %10s %10s%n", "case", "path", "ns/op", "B/op");
+        report("page", "builder", () -> {
+            out.write(buildPage(DISPLAY).getBytes("UTF-8"));
+            out.flush();
+        });
+        report("page", "splice", () -> {
+            WRITE_PAGE.invokeExact(CALCULATOR_PAGE, out, DISPLAY.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        });
+        report("response", "builder", () -> sendOldCalculatorPage(out, DISPLAY, state));
+        report("response", "splice", () -> {
+            SEND_CALCULATOR_PAGE.invokeExact(out, SESSION, REQUEST, false);
+            out.flush();
+        });
+        if (sink.bytes == 0) throw new AssertionError("nothing written");
+    }
+
+    private static void report(String name, String path, Bench.Op op) throws Throwable {
+        double[] perOp = Bench.measure(OPS_PER_ROUND, op);
+        System.out.printf("%-10s %-8s %10.1f %10.1f%n", name, path, perOp[0], perOp[1]);
+    }
+
+    // sendCalculatorPage as it was before the page was pre-encoded, with the display and the
+    // pipe-delimited state it read from static fields passed in
+    private static void sendOldCalculatorPage(OutputStream out, String currentDisplay, String state) throws IOException {
+        StringBuilder html = new StringBuilder();
+
+        html.append("HTTP/1.1 200 OK\r\n");
+        html.append("Content-Type: text/html\r\n");
+        html.append("Set-Cookie: calculatorState=" + state + "; Path=/\r\n");
+        html.append("Connection: close\r\n");
+        html.append("\r\n");
+        html.append(buildPage(currentDisplay));
+
+        out.write(html.toString().getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static String buildPage(String currentDisplay) {
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\r\n");
+        html.append("<html>\r\n");
+        html.append("<head>\r\n");
+        html.append("<title>Simple Calculator</title>\r\n");
+        html.append("<style>\r\n");
+        html.append("body { font-family: Arial, sans-serif; display: flex; justify-content: center; align-items: center; height: 100vh; margin: 0; background-color: #f4f4f4; }\r\n");
+        html.append(".calculator { width: 300px; background-color: #fff; border: 1px solid #ccc; border-radius: 10px; box-shadow: 0 4px 8px rgba(0, 0, 0, 0.1); padding: 20px; }\r\n");
+        html.append(".display { width: 100%; height: 60px; background-color: #e0e0e0; border: 1px solid #ccc; border-radius: 5px; margin-bottom: 20px; text-align: right; font-size: 28px; padding: 10px; box-sizing: border-box; }\r\n");
+        html.append(".buttons { display: grid; grid-template-columns: repeat(4, 1fr); gap: 10px; }\r\n");
+        html.append(".button { background-color: #f0f0f0; border: 1px solid #ccc; border-radius: 5px; padding: 20px; text-align: center; cursor: pointer; font-size: 18px; transition: background-color 0.2s; }\r\n");
+        html.append(".button:hover { background-color: #d0d0d0; }\r\n");
+        html.append(".clear { grid-column: span 2; background-color: #ff6666; color: white; }\r\n");
+        html.append(".equals { background-color: #66cc66; color: white; }\r\n");
+        html.append(".operator { background-color: #ffcc66; color: white; }\r\n");
+        html.append("</style>\r\n");
+        html.append("</head>\r\n");
+        html.append("<body>\r\n");
+        html.append("<div class=\"calculator\">\r\n");
+        html.append("<div class=\"display\">").append(currentDisplay).append("</div>\r\n");
+        html.append("<div class=\"buttons\">\r\n");
+        html.append("<a href=\"/C\" class=\"button clear\">Clear</a>\r\n");
+        html.append("<a href=\"/div\" class=\"button operator\">/</a>\r\n");
+        html.append("<a href=\"/*\" class=\"button operator\">*</a>\r\n");
+        html.append("<a href=\"/7\" class=\"button\">7</a>\r\n");
+        html.append("<a href=\"/8\" class=\"button\">8</a>\r\n");
+        html.append("<a href=\"/9\" class=\"button\">9</a>\r\n");
+        html.append("<a href=\"/-\" class=\"button operator\">-</a>\r\n");
+        html.append("<a href=\"/4\" class=\"button\">4</a>\r\n");
+        html.append("<a href=\"/5\" class=\"button\">5</a>\r\n");
+        html.append("<a href=\"/6\" class=\"button\">6</a>\r\n");
+        html.append("<a href=\"/+\" class=\"button operator\">+</a>\r\n");
+        html.append("<a href=\"/1\" class=\"button\">1</a>\r\n");
+        html.append("<a href=\"/2\" class=\"button\">2</a>\r\n");
+        html.append("<a href=\"/3\" class=\"button\">3</a>\r\n");
+        html.append("<a href=\"/=\" class=\"button equals\">=</a>\r\n");
+        html.append("<a href=\"/history\" class=\"button\">History</a>\r\n");
+        html.append("<a href=\"/0\" class=\"button\" style=\"grid-column: span 3;\">0</a>\r\n");
+        html.append("</div>\r\n");
+        html.append("</div>\r\n");
+        html.append("</body>\r\n");
+        html.append("</html>\r\n");
+        return html.toString();
+    }
+}
@@ -0,0 +1,30 @@
+#!/usr/bin/env bash
+# Pipelining check: sends one complete request followed by the first bytes of a second one on the
+# same connection. The response to the first request must arrive straight away, not once the
+# keep-alive timeout gives up on the unfinished second request.
+set -u
+
+PORT=18180
+SRC=$(cd "$(dirname "$0")" && pwd)
+WORK=$(mktemp -d)
+trap 'kill $SERVER 2>/dev/null; rm -rf "$WORK"' EXIT
+
+javac -d "$WORK/classes" "$SRC/CalculatorServer.java" || exit 1
+
+(cd "$WORK" && exec java -cp "$WORK/classes" -Dcalculator.port=$PORT -Dcalculator.keepAliveTimeout=5 \
+    CalculatorServer > stdout.txt 2>&1) &
+SERVER=$!
+sleep 1
+
+exec 3<>/dev/tcp/127.0.0.1/$PORT
+printf 'GET /1 HTTP/1.1\r\nHost: localhost\r\n\r\nGET /2 HTTP/1.1\r\nHo' >&3
+# Well inside the 5 s keep-alive timeout, so only a response flushed without waiting gets through
+RESPONSE=$(timeout 2 cat <&3)
+exec 3<&-
+
+if printf '%s' "$RESPONSE" | grep -q '^HTTP/1.1 200'; then
+    echo "PASS: first response sent while the second request is still arriving"
+else
+    echo "FAIL: first response held back behind the partial second request"
+    exit 1
+fi